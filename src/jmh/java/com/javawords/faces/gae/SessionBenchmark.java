@@ -0,0 +1,226 @@
+package com.javawords.faces.gae;
+
+import com.javawords.faces.gae.GAEExternalContextFactory.GAEExternalContext;
+import com.javawords.faces.serialization.SessionCodec;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the per-request cost of the GAE session layer: creating the {@link GAEExternalContext}
+ * of a request, restoring its session map on first access, persisting it and releasing it, the same way
+ * {@link GAEExternalContextFactory} and its phase listener do. Sessions are kept by
+ * {@link InMemorySessionStore}, standing in for memcache, so that the numbers cover the session layer
+ * itself rather than the network.
+ *
+ * <p>Every benchmark runs for sessions of 1KB to 1MB, split in 1 to 50 attributes, and reports both the
+ * throughput and the latency distribution including p99. Run with the thread counts and profilers of
+ * interest, for example:</p>
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="SessionBenchmark -t 1 -prof gc"
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="SessionBenchmark -t 8 -p sessionBytes=16384"
+ * </pre>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+
+    /**
+     * Approximate encoded size of a {@link Row}.
+     */
+    private static final int ROW_BYTES = 100;
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    int sessionBytes;
+
+    @Param({"1", "10", "50"})
+    int attributes;
+
+    private Map<String, String> initParameters;
+
+    private Map<String, Object> applicationMap;
+
+    private GAESessionConfig config;
+
+    private SessionCache sessionCache;
+
+    private SessionStore sessionStore;
+
+    private SessionCodec sessionCodec;
+
+    private SingleFlight<String, SessionSnapshot> restores;
+
+    private StubHttpSession sharedSession;
+
+    /**
+     * The session of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        StubExternalContext context;
+
+        int counter;
+
+        @Setup(Level.Trial)
+        public void setUp(SessionBenchmark benchmark) {
+            context = new StubExternalContext(benchmark.initParameters, benchmark.applicationMap,
+                    new StubHttpSession(UUID.randomUUID().toString()));
+            benchmark.populate(context);
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        initParameters = new HashMap<String, String>();
+        initParameters.put(GAESessionConfig.STORE, "memory");
+        initParameters.put(GAESessionConfig.VERSION_CHECK, "true");
+        applicationMap = new ConcurrentHashMap<String, Object>();
+        config = new GAESessionConfig(new StubExternalContext(initParameters, applicationMap, null));
+        sessionCache = config.createSessionCache();
+        sessionCodec = config.createSessionCodec();
+        sessionStore = config.createSessionStore(sessionCodec);
+        restores = new SingleFlight<String, SessionSnapshot>();
+        sharedSession = new StubHttpSession("shared");
+        populate(new StubExternalContext(initParameters, applicationMap, sharedSession));
+    }
+
+    /**
+     * A request not touching the session map.
+     */
+    @Benchmark
+    public Object untouched(Session session) {
+        GAEExternalContext context = context(session.context);
+        Map<String, Object> map = context.getSessionMap();
+        context.persist();
+        context.release();
+        return map;
+    }
+
+    /**
+     * A request reading an attribute of a session cached by this instance.
+     */
+    @Benchmark
+    public Object readCached(Session session) {
+        GAEExternalContext context = context(session.context);
+        Object value = context.getSessionMap().get("attribute0");
+        context.persist();
+        context.release();
+        return value;
+    }
+
+    /**
+     * A request reading an attribute of a session not cached by this instance, deserializing all of it.
+     */
+    @Benchmark
+    public Object readUncached(Session session) {
+        sessionCache.remove(((StubHttpSession) session.context.getSession(false)).getId());
+        GAEExternalContext context = context(session.context);
+        Object value = context.getSessionMap().get("attribute0");
+        context.persist();
+        context.release();
+        return value;
+    }
+
+    /**
+     * A request modifying an attribute in place, so that it has to be serialized and written back.
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object writeInPlace(Session session) {
+        GAEExternalContext context = context(session.context);
+        List<Row> rows = (List<Row>) context.getSessionMap().get("attribute0");
+        rows.set(0, new Row(session.counter++, new Random(session.counter)));
+        context.persist();
+        context.release();
+        return rows;
+    }
+
+    /**
+     * Requests of all the benchmark threads reading the same session, as the requests fired by a
+     * single page do.
+     */
+    @Benchmark
+    public Object readShared() {
+        GAEExternalContext context = context(new StubExternalContext(initParameters, applicationMap,
+                sharedSession));
+        Object value = context.getSessionMap().get("attribute0");
+        context.persist();
+        context.release();
+        return value;
+    }
+
+    private GAEExternalContext context(StubExternalContext servletContext) {
+        return new GAEExternalContext(servletContext.nextRequest(), config, sessionCache, sessionStore,
+                sessionCodec, restores);
+    }
+
+    /**
+     * Writes the attributes of a session of the configured size.
+     */
+    void populate(StubExternalContext servletContext) {
+        GAEExternalContext context = context(servletContext);
+        Random random = new Random(42);
+        int rows = Math.max(1, sessionBytes / attributes / ROW_BYTES);
+        for (int i = 0; i < attributes; i++) {
+            List<Row> attribute = new ArrayList<Row>(rows);
+            for (int j = 0; j < rows; j++) attribute.add(new Row(j, random));
+            context.getSessionMap().put("attribute" + i, attribute);
+        }
+        context.persist();
+        context.release();
+    }
+
+    /**
+     * A row of a data table kept in the session, the typical large session attribute.
+     */
+    static class Row implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 ".toCharArray();
+
+        private final long id;
+
+        private final String name;
+
+        private final String description;
+
+        Row(long id, Random random) {
+            this.id = id;
+            this.name = text(random, 16);
+            this.description = text(random, 64);
+        }
+
+        private static String text(Random random, int length) {
+            char[] result = new char[length];
+            for (int i = 0; i < length; i++) result[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+            return new String(result);
+        }
+
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.javawords.faces.gae;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.ExternalContextWrapper;
+
+/**
+ * The servlet side of a request for the benchmarks, standing in for the ExternalContext of the JSF
+ * runtime. Only the parts used by the GAE session layer are implemented.
+ */
+class StubExternalContext extends ExternalContextWrapper {
+
+    private final Map<String, String> initParameters;
+
+    private final Map<String, Object> applicationMap;
+
+    private final Map<String, Object> requestMap = new HashMap<String, Object>();
+
+    private final StubHttpSession session;
+
+    /**
+     * @param initParameters the context parameters of the application.
+     * @param applicationMap the application scope, shared by all the requests.
+     * @param session the session of the request.
+     */
+    StubExternalContext(Map<String, String> initParameters, Map<String, Object> applicationMap,
+            StubHttpSession session) {
+        this.initParameters = initParameters;
+        this.applicationMap = applicationMap;
+        this.session = session;
+    }
+
+    /**
+     * Starts a new request of the same session, clearing the request scope.
+     */
+    StubExternalContext nextRequest() {
+        requestMap.clear();
+        return this;
+    }
+
+    @Override
+    public ExternalContext getWrapped() {
+        throw new UnsupportedOperationException("Not available in benchmarks.");
+    }
+
+    @Override
+    public String getInitParameter(String name) {
+        return initParameters.get(name);
+    }
+
+    @Override
+    public Object getSession(boolean create) {
+        return session;
+    }
+
+    @Override
+    public Map<String, Object> getRequestMap() {
+        return requestMap;
+    }
+
+    @Override
+    public Map<String, Object> getApplicationMap() {
+        return applicationMap;
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.javawords.faces.mapping;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the URI classification of {@link MappingFilter}: the single pass {@link UriClassifier}
+ * against the regular expression and substring loop it replaced, for URIs of static resources, mapped
+ * pages with and without trailing slashes, and excluded directories. Run with the GC profiler to
+ * compare the allocations:
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="UriClassifierBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UriClassifierBenchmark {
+
+    private static final String CONTEXT_PATH = "/app";
+
+    private static final String[] EXCLUDES = {"/app/resources/", "/app/javax.faces.resource/"};
+
+    @Param({"/app/css/site.css", "/app/products/list", "/app/products/list-all//", "/app/resources/img/logo"})
+    String uri;
+
+    private UriClassifier classifier;
+
+    @Setup
+    public void setUp() {
+        classifier = new UriClassifier(CONTEXT_PATH, EXCLUDES);
+    }
+
+    @Benchmark
+    public String classifier() {
+        return classifier.classify(uri);
+    }
+
+    /**
+     * The classification as done before {@link UriClassifier}.
+     */
+    @Benchmark
+    public String regex() {
+        String result = uri;
+        for (String s : EXCLUDES) {
+            if (result.startsWith(s)) {
+                return null;
+            }
+        }
+        if (!result.matches(".*/[\\w\\-]+/*")) {
+            return null;
+        }
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        if (result.startsWith(CONTEXT_PATH)) {
+            result = result.substring(CONTEXT_PATH.length());
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.javawords.faces.auth;
+
+/**
+ * The outcomes of the access checks of {@link AuthFilter}.
+ */
+public enum AuthDecision {
+
+    /**
+     * The request was let through.
+     */
+    PASSED,
+
+    /**
+     * An anonymous request to a protected resource was forwarded to the login page.
+     */
+    FORWARDED,
+
+    /**
+     * The request was answered with a 404 HTTP error, the user lacking the rights to the resource.
+     */
+    DENIED,
+
+    /**
+     * The checks failed with an error.
+     */
+    FAILED
+
+}
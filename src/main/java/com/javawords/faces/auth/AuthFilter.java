@@ -1,18 +1,38 @@
 package com.javawords.faces.auth;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import com.javawords.faces.context.RequestContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.Principal;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,8 +54,66 @@ import org.slf4j.LoggerFactory;
  * requested URI will be added to the <code>HttpServletRequest</code> as an attribute with the
  * name <code><em>gr.xfrag.blogcounts.authFilter.originalURI</em></code>.
  *  </li>
+ *  <li><code>roleResources:</code> Comma-separated list of resources
+ * requiring a role or permission, each one written as
+ * <code>resource=name1|name2</code> and granting access to users holding
+ * any of the listed names, see {@link RoleAwareAuthUser}. Anonymous users are
+ * forwarded as for user resources, users without the role receive a 404
+ * HTTP error. Up to 62 rules are supported.
+ *  </li>
+ *  <li><code>rulesLocation:</code> Optional properties file defining any of
+ * the above parameters, overriding the init parameters. Paths starting with
+ * '/' are web application resources, <code>classpath:</code> locations are
+ * class path resources, anything else is a URL.
+ *  </li>
+ *  <li><code>rulesCheckInterval:</code> Seconds between checks of the rules
+ * file for changes, 0 (the default) to load it only on initialization.
+ * The file is checked by a background thread, or by the first request after
+ * the interval where background threads are not available. Files without a
+ * modification time are compared by content. Changed rules are compiled
+ * completely and then published at once, requests never see them partially
+ * applied.
+ *  </li>
+ *  <li><code>auditSampling:</code> One of this many denied requests is
+ * written to the <code>com.javawords.faces.auth.audit</code> log at info
+ * level, 100 by default, 0 to write none.
+ *  </li>
+ *  <li><code>metricsSink:</code> Receives the counts of the decisions per
+ * rule list and role resource, and the latency histogram of the checks,
+ * see {@link AuthStats}:
+ * <code>log</code> or the class name of an {@link AuthMetricsSink}. Not set
+ * by default, the counters are still kept.
+ *  </li>
+ *  <li><code>metricsInterval:</code> Seconds between metrics publications to
+ * the sink, 60 by default.
+ *  </li>
+ *  <li><code>tokenKeys:</code> Enables the stateless mode, comma-separated
+ * list of HMAC keys written as <code>id:secret</code>, the secrets base64url
+ * encoded and at least 16 bytes long. In this mode the user is kept in a
+ * signed, expiring cookie instead of the session, see {@link TokenAuthenticator}.
+ * The first key signs new tokens, all of them verify tokens, so keys are
+ * rotated by prepending the new key and removing the old one after the
+ * tokens it signed expire. The token carries the name, admin flag, roles
+ * and permissions of the registered user rather than rule bits, so that it
+ * stays valid when the rules change, and {@link #getUser(HttpServletRequest)}
+ * returns a {@link TokenUser} holding them rather than the registered
+ * instance. The original URI of forwarded requests is kept in a cookie too,
+ * named after the token cookie with a <code>_uri</code> suffix.
+ *  </li>
+ *  <li><code>tokenMaxAge:</code> Seconds a token is valid for, 3600 by
+ * default. Tokens past half their age are issued again on the next request.
+ *  </li>
+ *  <li><code>tokenCookie:</code> Name of the token cookie, <code>auth_token</code>
+ * by default.
+ *  </li>
  * </ul>
  * 
+ * <p>The static methods act on the configuration of the filter serving the
+ * request. Requests that did not pass through the filter are seen in session
+ * mode, so in stateless mode the filter has to be mapped ahead of any filter
+ * calling {@link #getUser(HttpServletRequest)}, such as the output cache of
+ * {@link com.javawords.faces.mapping.MappingFilter}.</p>
+ * 
  * TODO: In order to generalize this class, we have to create an Interface
  * named "AuthUser" or something similar, and require users of this library
  * to implement it. Then we'll lookup current session for an instance of
@@ -45,39 +123,108 @@ import org.slf4j.LoggerFactory;
 public class AuthFilter implements Filter {
 
     private static final Logger logger = LoggerFactory.getLogger(AuthFilter.class);
+    /**
+     * The audit log of denied requests.
+     */
+    private static final Logger audit = LoggerFactory.getLogger("com.javawords.faces.auth.audit");
     /**
      * The <code>FilterConfig</code> provided during initialization.
      */
     private FilterConfig config;
     /**
-     * Resources requiring admin user rights to be accessed.
+     * The compiled rules, replaced as a whole when the rules are reloaded.
      */
-    private List<String> adminResources = Collections.emptyList();
+    private volatile AuthRules rules;
     /**
-     * Resources requiring registered user rights to be accessed.
+     * The rules given as init parameters, overridden by the rules file.
      */
-    private List<String> userResources = Collections.emptyList();
+    private Map<String, String> initRules;
     /**
-     * Forward url for unauthorized requests.
+     * Location of the rules file, {@code null} if there is none.
      */
-    private String forwardTo = null;
+    private URL rulesLocation;
+    /**
+     * Milliseconds between checks of the rules file for changes, 0 to load
+     * it only on initialization.
+     */
+    private long rulesCheckInterval;
+    /**
+     * Time of the next check of the rules file, claimed by one request at a time.
+     */
+    private final AtomicLong nextRulesCheck = new AtomicLong();
+    /**
+     * Checks the rules file in the background, {@code null} if requests
+     * check it.
+     */
+    private Thread rulesChecker;
+    /**
+     * Last modification time of the loaded rules file.
+     */
+    private volatile long rulesModified;
+    /**
+     * Content of the loaded rules file, compared when the file has no
+     * modification time.
+     */
+    private volatile byte[] rulesContent;
     /**
      * Web application context path.
      */
     private String contextPath;
     /**
-     * {@code InheritableThreadLocal} keeping track of active requests.
-     * When this {@code Filter} is invoked, it will store a reference of
-     * the active request in this object. This reference can be used later
-     * by the static utility methods of this class, allowing interaction
-     * with the request, session and application scopes.
+     * One of this many denials is written to the audit log, 0 to write none.
      */
-    private static InheritableThreadLocal<HttpServletRequest> requestStore =
-            new InheritableThreadLocal<HttpServletRequest>();
+    private long auditSampling;
+    /**
+     * Counts denials for the audit sampling.
+     */
+    private final AtomicLong auditCounter = new AtomicLong();
+    /**
+     * Receives the metrics, {@code null} if there is no sink.
+     */
+    private AuthMetricsSink metricsSink;
+    /**
+     * Milliseconds between metrics publications.
+     */
+    private long metricsInterval;
+    /**
+     * Time of the next metrics publication, claimed by one request at a time.
+     */
+    private final AtomicLong nextMetricsPublish = new AtomicLong();
+    /**
+     * The metrics published last.
+     */
+    private volatile AuthMetrics lastMetrics;
+    /**
+     * Signs and verifies the tokens of the stateless mode, {@code null} if
+     * the users are kept in the session.
+     */
+    private TokenAuthenticator tokens;
+    /**
+     * Name of the token cookie.
+     */
+    private String tokenCookie = "auth_token";
+    /**
+     * Cookie path of the token cookie.
+     */
+    private String tokenPath = "/";
     
     public static final String AUTH_USER_ATTRIBUTE = "com.javawords.faces.auth.AuthUser";
+    public static final String AUTH_ROLES_ATTRIBUTE = "com.javawords.faces.auth.AuthRoles";
     public static final String ORIGINAL_URI_PROPERTY_NAME = 
             "com.javawords.faces.auth.originalURI";
+    /**
+     * Request attribute marking that the token of the request has been verified.
+     */
+    private static final String TOKEN_CHECKED_ATTRIBUTE = "com.javawords.faces.auth.TokenChecked";
+    /**
+     * Request attribute holding the filter serving the request, whose
+     * configuration the static methods act on.
+     */
+    private static final String FILTER_ATTRIBUTE = AuthFilter.class.getName();
+    /**
+     * Suffix of the name of the cookie keeping the original URI in stateless mode.
+     */
+    private static final String ORIGINAL_URI_COOKIE_SUFFIX = "_uri";
 
     /**
      * Filter Initialization - Extracts configuration from the
@@ -97,36 +244,58 @@ public class AuthFilter implements Filter {
         logger.debug("Context path is " + contextPath);
 
         // Get init parameters.
-        String adminParam = config.getInitParameter("adminResources");
-        String userParam = config.getInitParameter("userResources");
-        forwardTo = config.getInitParameter("forwardTo");
-        if (forwardTo == null) {
-            forwardTo = "/";
+        initRules = new HashMap<String, String>();
+        for (String name : Arrays.asList(AuthRules.ADMIN_RESOURCES, AuthRules.USER_RESOURCES,
+                AuthRules.ROLE_RESOURCES_PARAM, AuthRules.FORWARD_TO)) {
+            String value = config.getInitParameter(name);
+            if (value == null) {
+                logger.info(name + " parameter not set.");
+            } else {
+                initRules.put(name, value);
+            }
         }
-
-
-        // Extract admin areas.
-        if (adminParam == null) {
-            logger.info("adminResources parameter not set.");
-        } else {
-            adminResources = Arrays.asList(adminParam.split(","));
-            logger.info(!adminResources.isEmpty() ? "Admin Resources:" : "No Admin Resources set or syntax error.");
-            for (String area : adminResources) {
-                logger.info(area);
+        String locationParam = config.getInitParameter("rulesLocation");
+        rulesCheckInterval = parseLong(config, "rulesCheckInterval", 0L) * 1000L;
+        if (locationParam != null) {
+            rulesLocation = resolveRules(config.getServletContext(), locationParam.trim());
+            if (rulesLocation == null) {
+                logger.error("Rules file " + locationParam + " not found, using the init parameters.");
             }
         }
+        if (rulesLocation == null || !reloadRules(true)) {
+            publish(AuthRules.compile(initRules, contextPath));
+        }
+        nextRulesCheck.set(System.currentTimeMillis() + rulesCheckInterval);
+        if (rulesLocation != null && rulesCheckInterval > 0) {
+            startRulesChecker();
+        }
+
+        // Instrumentation.
+        auditSampling = parseLong(config, "auditSampling", 100L);
+        String sinkParam = config.getInitParameter("metricsSink");
+        metricsInterval = parseLong(config, "metricsInterval", 60L) * 1000L;
+        metricsSink = sinkParam == null ? null : createMetricsSink(sinkParam.trim());
+        lastMetrics = AuthStats.getInstance().snapshot();
+        nextMetricsPublish.set(System.currentTimeMillis() + metricsInterval);
 
-        // Extract user areas.
-        if (userParam == null) {
-            logger.info("userResources parameter not set.");
+        // Stateless mode.
+        String keysParam = config.getInitParameter("tokenKeys");
+        if (keysParam == null) {
+            logger.info("tokenKeys parameter not set, users are kept in the session.");
         } else {
-            userResources = Arrays.asList(userParam.split(","));
-            logger.info(!userResources.isEmpty() ? "User Resources:" : "No User Resources set or syntax error.");
-            for (String area : userResources) {
-                logger.info(area);
+            long maxAge = parseLong(config, "tokenMaxAge", 3600L);
+            String cookieParam = config.getInitParameter("tokenCookie");
+            try {
+                tokens = new TokenAuthenticator(TokenAuthenticator.parseKeys(keysParam), maxAge * 1000L);
+            } catch (GeneralSecurityException e) {
+                throw new ServletException("Unable to initialize token keys.", e);
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Invalid token configuration: " + e.getMessage(), e);
             }
+            tokenCookie = cookieParam == null ? "auth_token" : cookieParam.trim();
+            tokenPath = contextPath.length() == 0 ? "/" : contextPath;
+            logger.info("Users are kept in signed '" + tokenCookie + "' cookies.");
         }
-
     }
 
     @Override
@@ -134,51 +303,309 @@ public class AuthFilter implements Filter {
             throws IOException, ServletException {
         
         HttpServletRequest httpReq = (HttpServletRequest) request;
-        // Keep a reference of the active request.
-        requestStore.set(httpReq);
-        // This flag will remain true if the outcome of the following procees
-        // is an error or a redirection.
-        boolean clearRequestStore = true;
-        
+        // Attach the active request, it is detached whatever the outcome.
+        RequestContext previous = new RequestContext(httpReq, (HttpServletResponse) response).attach();
+        Object previousFilter = httpReq.getAttribute(FILTER_ATTRIBUTE);
+        httpReq.setAttribute(FILTER_ATTRIBUTE, this);
+        try {
+            if (authorize(httpReq, response)) {
+                // Let the other filters perform filtering.
+                chain.doFilter(request, response);
+            }
+        } finally {
+            httpReq.setAttribute(FILTER_ATTRIBUTE, previousFilter);
+            RequestContext.restore(previous);
+        }
+    }
+
+    /**
+     * Checks the access rights of the request, sending an error or forwarding
+     * the request if access is denied.
+     * @return true if the request may proceed.
+     */
+    private boolean authorize(HttpServletRequest httpReq, ServletResponse response)
+            throws ServletException {
         // Get the requested URI
         String uri = httpReq.getRequestURI();
-        logger.debug("Filtering requested URI: " + uri);
+        logger.debug("Filtering requested URI: {}", uri);
+        long start = System.nanoTime();
+        long access = 0;
+        AuthDecision decision = AuthDecision.FAILED;
+        AuthRules current;
         try {
+            checkRules();
+            current = rules;
 
             // Check the request
-            if (requiresAuth(uri, adminResources) && !isAdminUser(httpReq)) {
-                // Hide the resource
-                HttpServletResponse httpRes = (HttpServletResponse) response;
-                httpRes.sendError(HttpServletResponse.SC_NOT_FOUND);
-                return;
-            } else if (requiresAuth(uri, userResources) && !isUser(httpReq)) {
-                // Forward to the location specified in parameters.
-                storeOriginalURI(httpReq);
-                RequestDispatcher rd = config.getServletContext()
-                                             .getRequestDispatcher(forwardTo);
-                
-                rd.forward(request, response);
-                return;
-            }
-            // If the following line gets executed, we can safely keep the
-            // request reference object in the store.
-            clearRequestStore = false;
-        } catch (Exception e) {
+            access = current.match(uri);
+            decision = decide(httpReq, current, access);
+        } catch (RuntimeException e) {
             logger.error("Error trying to authenticate access to " + uri, e);
             throw new ServletException("Error trying to authenticate access to " + uri, e);
         } finally {
-            // Clear reference of active request.
-            if (clearRequestStore)                
-                requestStore.set(null);
+            AuthStats.getInstance().record(access, decision, System.nanoTime() - start);
+            checkMetrics();
+        }
+        try {
+            switch (decision) {
+                case DENIED:
+                    audit(httpReq, current, access);
+                    // Hide the resource
+                    ((HttpServletResponse) response).sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return false;
+                case FORWARDED:
+                    // Forward to the location specified in parameters.
+                    storeOriginalURI(httpReq);
+                    RequestDispatcher rd = config.getServletContext()
+                                                 .getRequestDispatcher(current.getForwardTo());
+                    rd.forward(httpReq, response);
+                    return false;
+                default:
+                    refreshToken(httpReq);
+                    return true;
+            }
+        } catch (Exception e) {
+            logger.error("Error trying to authenticate access to " + uri, e);
+            throw new ServletException("Error trying to authenticate access to " + uri, e);
+        }
+    }
+
+    /**
+     * Checks the access rights of the user of the request to a resource.
+     */
+    private AuthDecision decide(HttpServletRequest httpReq, AuthRules current, long access) {
+        if ((access & AuthRules.ADMIN_RESOURCE) != 0 && !isAdminUser(httpReq)) {
+            return AuthDecision.DENIED;
+        } else if ((access & (AuthRules.USER_RESOURCE | AuthRules.ROLE_RESOURCES)) != 0
+                && !isUser(httpReq)) {
+            return AuthDecision.FORWARDED;
+        } else if ((access & AuthRules.ROLE_RESOURCES) != 0 && !hasRoles(httpReq, current, access)) {
+            // Hide the resource from users lacking the role.
+            return AuthDecision.DENIED;
+        }
+        return AuthDecision.PASSED;
+    }
+
+    /**
+     * Logs one of every {@link #auditSampling} denials to the audit log.
+     */
+    private void audit(HttpServletRequest req, AuthRules current, long access) {
+        if (auditSampling <= 0 || !audit.isInfoEnabled()
+                || auditCounter.incrementAndGet() % auditSampling != 0) {
+            return;
+        }
+        AuthUser user = getUser(req);
+        String name = user == null ? "anonymous"
+                : user instanceof Principal ? ((Principal) user).getName() : "user";
+        audit.info("Denied {} to {} from {}, rules {}", new Object[]{
+            req.getRequestURI(), name, req.getRemoteAddr(), current.describe(access)});
+    }
+
+    /**
+     * Publishes the metrics of the elapsed interval to the metrics sink, at
+     * most once per interval. Publishing is done by the first request after
+     * the interval elapses.
+     */
+    private void checkMetrics() {
+        AuthMetricsSink sink = metricsSink;
+        if (sink == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = nextMetricsPublish.get();
+        if (now >= next && nextMetricsPublish.compareAndSet(next, now + metricsInterval)) {
+            AuthMetrics snapshot = AuthStats.getInstance().snapshot();
+            AuthMetrics previous = lastMetrics;
+            lastMetrics = snapshot;
+            try {
+                sink.publish(snapshot.since(previous));
+            } catch (RuntimeException e) {
+                logger.warn("Metrics sink failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a numeric init parameter.
+     * @throws ServletException if the value is not a number.
+     */
+    private static long parseLong(FilterConfig config, String name, long defaultValue) throws ServletException {
+        String value = config.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid " + name + " parameter '" + value + "', a whole number is expected.", e);
+        }
+    }
+
+    /**
+     * Starts the thread checking the rules file once per check interval,
+     * leaving the checks to requests where background threads are not
+     * available.
+     */
+    private void startRulesChecker() {
+        Runnable checker = new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(rulesCheckInterval);
+                        reloadRules(false);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        logger.error("Checking the authorization rules failed.", e);
+                    }
+                }
+            }
+        };
+        try {
+            Thread thread = ApiProxy.getCurrentEnvironment() != null
+                    ? ThreadManager.createBackgroundThread(checker) : new Thread(checker);
+            thread.setName("AuthFilter rules check");
+            thread.setDaemon(true);
+            thread.start();
+            rulesChecker = thread;
+        } catch (RuntimeException e) {
+            logger.info("Background threads are not allowed, the rules file is checked by requests.");
+        } catch (LinkageError e) {
+            logger.info("Background threads are not available, the rules file is checked by requests.");
+        }
+    }
+
+    /**
+     * Reloads the rules file if it changed since it was loaded, at most once
+     * per check interval. Unless the file is checked in the background, the
+     * check is done by the first request after the interval elapses, other
+     * requests go on with the current rules.
+     */
+    private void checkRules() {
+        if (rulesLocation == null || rulesCheckInterval <= 0 || rulesChecker != null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = nextRulesCheck.get();
+        if (now >= next && nextRulesCheck.compareAndSet(next, now + rulesCheckInterval)) {
+            reloadRules(false);
+        }
+    }
+
+    /**
+     * Loads the rules file and publishes the rules it defines, together with
+     * the init parameters it does not override. On failure the current rules
+     * are kept.
+     * @param force load the file even if it did not change.
+     * @return true if new rules were published.
+     */
+    public boolean reloadRules(boolean force) {
+        if (rulesLocation == null) {
+            return false;
+        }
+        try {
+            URLConnection connection = rulesLocation.openConnection();
+            connection.setUseCaches(false);
+            long modified = connection.getLastModified();
+            if (!force && modified != 0 && modified == rulesModified) {
+                connection.getInputStream().close();
+                return false;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[4096];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    content.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            byte[] bytes = content.toByteArray();
+            if (!force && modified == 0 && Arrays.equals(bytes, rulesContent)) {
+                // No modification time, unchanged content.
+                return false;
+            }
+            Properties properties = new Properties();
+            properties.load(new ByteArrayInputStream(bytes));
+            Map<String, String> params = new HashMap<String, String>(initRules);
+            for (String name : properties.stringPropertyNames()) {
+                params.put(name, properties.getProperty(name));
+            }
+            // Compile completely before publishing, requests never see partial rules.
+            AuthRules compiled = AuthRules.compile(params, contextPath);
+            publish(compiled);
+            rulesModified = modified;
+            rulesContent = bytes;
+            logger.info("Loaded authorization rules from " + rulesLocation);
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to load authorization rules from " + rulesLocation
+                    + ", keeping the current rules.", e);
+        } catch (RuntimeException e) {
+            logger.error("Invalid authorization rules in " + rulesLocation
+                    + ", keeping the current rules.", e);
+        }
+        return false;
+    }
+
+    private void publish(AuthRules compiled) {
+        compiled.log();
+        rules = compiled;
+        AuthStats.getInstance().setRules(compiled.ruleNames());
+    }
+
+    private static AuthMetricsSink createMetricsSink(String sink) throws ServletException {
+        if ("log".equals(sink)) {
+            return new LoggingMetricsSink();
+        }
+        try {
+            Class<? extends AuthMetricsSink> c = Class.forName(sink, true,
+                    Thread.currentThread().getContextClassLoader()).asSubclass(AuthMetricsSink.class);
+            return c.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            throw new ServletException("Cannot create metrics sink " + sink, e.getCause());
+        } catch (ClassNotFoundException e) {
+            throw new ServletException("Cannot create metrics sink " + sink, e);
+        } catch (NoSuchMethodException e) {
+            throw new ServletException("Metrics sink " + sink + " has no no-argument constructor", e);
+        } catch (InstantiationException e) {
+            throw new ServletException("Cannot create metrics sink " + sink, e);
+        } catch (IllegalAccessException e) {
+            throw new ServletException("Cannot create metrics sink " + sink, e);
+        } catch (ClassCastException e) {
+            throw new ServletException(sink + " is not a " + AuthMetricsSink.class.getName(), e);
+        }
+    }
+
+    /**
+     * Resolves the location of the rules file: paths starting with '/' are
+     * web application resources, <code>classpath:</code> locations are class
+     * path resources, anything else is taken as a URL.
+     */
+    private static URL resolveRules(ServletContext context, String location) {
+        try {
+            if (location.startsWith("/")) {
+                return context.getResource(location);
+            }
+            if (location.startsWith("classpath:")) {
+                return Thread.currentThread().getContextClassLoader()
+                        .getResource(location.substring("classpath:".length()));
+            }
+            return new URL(location);
+        } catch (MalformedURLException e) {
+            logger.error("Invalid rules location " + location, e);
+            return null;
         }
-        // Let the other filters perform filtering.
-        chain.doFilter(request, response);
-        // Request processing complete, clear the request store.
-        requestStore.set(null);
     }
 
     @Override
     public void destroy() {
+        if (rulesChecker != null) {
+            rulesChecker.interrupt();
+            rulesChecker = null;
+        }
         config = null;
     }
 
@@ -188,29 +615,58 @@ public class AuthFilter implements Filter {
         if (query != null) {
             uri += "?" + query;
         }
+        if (tokens != null) {
+            // Stateless mode, do not create a session for it.
+            setCookie(req, tokenCookie + ORIGINAL_URI_COOKIE_SUFFIX, encodeCookieValue(uri),
+                    tokens.getMaxAge() / 1000L);
+            logger.debug("Set original URI cookie, value: {}", uri);
+            return;
+        }
         req.getSession().setAttribute(ORIGINAL_URI_PROPERTY_NAME, uri);
-        logger.debug("Set '" + ORIGINAL_URI_PROPERTY_NAME + "' Session attribute, value: " + uri);
+        logger.debug("Set '{}' Session attribute, value: {}", ORIGINAL_URI_PROPERTY_NAME, uri);
     }
 
-    private boolean requiresAuth(String uri, List<String> resources) {
-        boolean needs = false;
-        for (String resrc : resources) {
-            if (resrc.startsWith("*.")) {
-                needs |= uri.endsWith(resrc.substring(2));
-            } else {
-                needs |= uri.startsWith(contextPath + resrc);
-            }
+    /**
+     * Returns true if the passed in request is served in stateless mode.
+     */
+    static boolean isStateless(HttpServletRequest req) {
+        AuthFilter filter = filterOf(req);
+        return filter != null && filter.tokens != null;
+    }
+
+    /**
+     * Returns and clears the original URI kept in a cookie for the passed
+     * in request in stateless mode.
+     * @return the URI, or {@code null} if there is none or the request is
+     * served in session mode, where the URI is kept in the session.
+     */
+    static String takeOriginalURI(HttpServletRequest req) {
+        AuthFilter filter = filterOf(req);
+        if (filter == null || filter.tokens == null) {
+            return null;
+        }
+        String name = filter.tokenCookie + ORIGINAL_URI_COOKIE_SUFFIX;
+        String value = cookieValue(req, name);
+        if (value == null) {
+            return null;
         }
-        return needs;
+        filter.setCookie(req, name, "", 0L);
+        String uri = decodeCookieValue(value);
+        // Only ever redirect within this server.
+        if (uri == null || !uri.startsWith("/") || uri.startsWith("//") || uri.startsWith("/\\")) {
+            logger.debug("Ignoring invalid original URI cookie.");
+            return null;
+        }
+        return uri;
     }
 
     private boolean isAdminUser(HttpServletRequest req) {
         // TODO: Set a user type attribute so we can check here if user is admin.
         logger.debug("Request requires admin authorization.");
         AuthUser user = getUser(req);
-        logger.debug("User is " + (user == null ? "not" : "") + " authorized.");
+        logger.debug("User is {}authorized.", user == null ? "not " : "");
         if (user != null) {
-            logger.debug("User" + (user.isAdmin() ? "" : " do not") + " have administrative priviledges.");
+            logger.debug("User {} administrative priviledges.", user.isAdmin() ? "has" : "does not have");
             return user.isAdmin();
         }
         return false;
@@ -219,17 +675,107 @@ public class AuthFilter implements Filter {
     private boolean isUser(HttpServletRequest req) {
         logger.debug("Request requires user authorization.");
         AuthUser user = getUser(req);
-        logger.debug("User is " + (user == null ? "not" : "") + " authorized.");
+        logger.debug("User is {}authorized.", user == null ? "not " : "");
         return user != null;
     }
 
-    private AuthUser getUser(HttpServletRequest req) {
+    /**
+     * Checks that the user holds one of the roles of every role resource
+     * in the passed in access classification.
+     */
+    private boolean hasRoles(HttpServletRequest req, AuthRules current, long access) {
+        logger.debug("Request requires role authorization.");
+        RoleSet roles = getRoles(req, current.getRegistry());
+        if (roles == null) {
+            return false;
+        }
+        long matched = (access & AuthRules.ROLE_RESOURCES) >>> AuthRules.FIRST_ROLE_BIT;
+        while (matched != 0) {
+            int rule = Long.numberOfTrailingZeros(matched);
+            if (!roles.intersects(current.roleMask(rule))) {
+                return false;
+            }
+            matched &= matched - 1;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the filter serving the passed in request, {@code null} if it
+     * did not pass through one.
+     */
+    private static AuthFilter filterOf(HttpServletRequest req) {
+        Object filter = req.getAttribute(FILTER_ATTRIBUTE);
+        return filter instanceof AuthFilter ? (AuthFilter) filter : null;
+    }
+
+    /**
+     * Returns the role set of the user of the request, computing it again
+     * if the rules changed since it was computed.
+     */
+    private RoleSet getRoles(HttpServletRequest req, RoleRegistry registry) {
+        if (tokens != null) {
+            return getTokenRoles(req, registry);
+        }
+        HttpSession session = req.getSession(false);
+        if (session == null) {
+            return null;
+        }
+        Object val = session.getAttribute(AUTH_ROLES_ATTRIBUTE);
+        if (val instanceof RoleSet && ((RoleSet) val).getRegistryId() == registry.getId()) {
+            return (RoleSet) val;
+        }
+        Object user = session.getAttribute(AUTH_USER_ATTRIBUTE);
+        if (!(user instanceof AuthUser)) {
+            return null;
+        }
+        RoleSet roles = registry.roleSetOf((AuthUser) user);
+        session.setAttribute(AUTH_ROLES_ATTRIBUTE, roles);
+        return roles;
+    }
+
+    /**
+     * Returns true if the user of the current request holds the passed in
+     * role or permission. Only the names used by the <code>roleResources</code>
+     * rules of the filter serving the request can be checked, any other name
+     * is reported as not held.
+     */
+    public static boolean isUserInRole(String name) {
+        HttpServletRequest req = RequestContext.require().getRequest();
+        AuthFilter filter = filterOf(req);
+        if (filter == null) {
+            return false;
+        }
+        RoleRegistry registry = filter.rules.getRegistry();
+        int index = registry.indexOf(name);
+        if (index < 0) {
+            return false;
+        }
+        RoleSet roles = filter.getRoles(req, registry);
+        return roles != null && roles.contains(index);
+    }
+
+    /**
+     * Returns the logged-in user of the passed in request, {@code null} for
+     * anonymous requests. Never creates a session. In stateless mode the user
+     * is the {@link TokenUser} read from the token of the request.
+     */
+    public static AuthUser getUser(HttpServletRequest req) {
 //        AccountBean account = (AccountBean) req.getSession().getAttribute("accountBean");
 //        if (account == null) {
 //            return null;
 //        }
 //        return account.getUser();
-        Object val =  req.getSession().getAttribute(AUTH_USER_ATTRIBUTE);
+        AuthFilter filter = filterOf(req);
+        if (filter != null && filter.tokens != null) {
+            return filter.getTokenUser(req);
+        }
+        // Do not create a session just to find out there is no user.
+        HttpSession session = req.getSession(false);
+        if (session == null) {
+            return null;
+        }
+        Object val =  session.getAttribute(AUTH_USER_ATTRIBUTE);
         if((val != null) && (val instanceof AuthUser)){
             return (AuthUser) val;
         }
@@ -242,10 +788,163 @@ public class AuthFilter implements Filter {
      * @param user the {@code AuthUser} to register.
      */
     public static void registerAuthUser(AuthUser user) {
-        requestStore.get().getSession().setAttribute(AUTH_USER_ATTRIBUTE, user);
+        HttpServletRequest req = RequestContext.require().getRequest();
+        AuthFilter filter = filterOf(req);
+        if (filter != null && filter.tokens != null) {
+            TokenAuthenticator authenticator = filter.tokens;
+            filter.setCookie(req, filter.tokenCookie, authenticator.issue(user), authenticator.getMaxAge() / 1000L);
+            req.setAttribute(TOKEN_CHECKED_ATTRIBUTE, Boolean.TRUE);
+            req.setAttribute(AUTH_USER_ATTRIBUTE, user);
+            req.removeAttribute(AUTH_ROLES_ATTRIBUTE);
+            return;
+        }
+        HttpSession session = req.getSession();
+        session.setAttribute(AUTH_USER_ATTRIBUTE, user);
+        if (filter != null) {
+            // Intern the roles of the user once, checks are bit tests from now on.
+            session.setAttribute(AUTH_ROLES_ATTRIBUTE, filter.rules.getRegistry().roleSetOf(user));
+        } else {
+            session.removeAttribute(AUTH_ROLES_ATTRIBUTE);
+        }
     }
     
     public static void clearAuthUser() {
-        requestStore.get().getSession().removeAttribute(AUTH_USER_ATTRIBUTE);
+        HttpServletRequest req = RequestContext.require().getRequest();
+        AuthFilter filter = filterOf(req);
+        if (filter != null && filter.tokens != null) {
+            filter.setCookie(req, filter.tokenCookie, "", 0L);
+            req.setAttribute(TOKEN_CHECKED_ATTRIBUTE, Boolean.TRUE);
+            req.removeAttribute(AUTH_USER_ATTRIBUTE);
+            req.removeAttribute(AUTH_ROLES_ATTRIBUTE);
+            return;
+        }
+        HttpSession session = req.getSession(false);
+        if (session != null) {
+            session.removeAttribute(AUTH_USER_ATTRIBUTE);
+            session.removeAttribute(AUTH_ROLES_ATTRIBUTE);
+        }
+    }
+
+    /**
+     * Returns the user of the token cookie of the request, verifying it once
+     * per request.
+     */
+    private AuthUser getTokenUser(HttpServletRequest req) {
+        if (req.getAttribute(TOKEN_CHECKED_ATTRIBUTE) != null) {
+            Object val = req.getAttribute(AUTH_USER_ATTRIBUTE);
+            return val instanceof AuthUser ? (AuthUser) val : null;
+        }
+        req.setAttribute(TOKEN_CHECKED_ATTRIBUTE, Boolean.TRUE);
+        Cookie[] cookies = req.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (tokenCookie.equals(cookie.getName()) && cookie.getValue() != null) {
+                TokenUser user = tokens.verify(cookie.getValue());
+                if (user != null) {
+                    req.setAttribute(AUTH_USER_ATTRIBUTE, user);
+                    return user;
+                }
+                logger.debug("Ignoring invalid or expired token.");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the role set of the token user of the request, computed once
+     * per request.
+     */
+    private RoleSet getTokenRoles(HttpServletRequest req, RoleRegistry registry) {
+        Object val = req.getAttribute(AUTH_ROLES_ATTRIBUTE);
+        if (val instanceof RoleSet && ((RoleSet) val).getRegistryId() == registry.getId()) {
+            return (RoleSet) val;
+        }
+        AuthUser user = getTokenUser(req);
+        if (user == null) {
+            return null;
+        }
+        RoleSet roles = registry.roleSetOf(user);
+        req.setAttribute(AUTH_ROLES_ATTRIBUTE, roles);
+        return roles;
+    }
+
+    /**
+     * Issues the token of the request again once it is past half its age,
+     * so that active users stay logged in.
+     */
+    private void refreshToken(HttpServletRequest req) {
+        if (tokens == null) {
+            return;
+        }
+        AuthUser user = getTokenUser(req);
+        if (user instanceof TokenUser && ((TokenUser) user).getExpires() - System.currentTimeMillis()
+                < tokens.getMaxAge() / 2) {
+            setCookie(req, tokenCookie, tokens.issue(user), tokens.getMaxAge() / 1000L);
+        }
+    }
+
+    /**
+     * Sets a cookie on the response of the active request, under the path of
+     * the token cookie. The header is written directly, the Servlet 2.5 API
+     * has no way to mark a cookie HttpOnly.
+     */
+    private void setCookie(HttpServletRequest req, String name, String value, long maxAge) {
+        HttpServletResponse res = RequestContext.require().getResponse();
+        if (res == null || res.isCommitted()) {
+            logger.warn("Unable to set the " + name + " cookie, the response is not available.");
+            return;
+        }
+        StringBuilder header = new StringBuilder(name).append('=').append(value)
+                .append("; Path=").append(tokenPath)
+                .append("; Max-Age=").append(maxAge)
+                .append("; HttpOnly");
+        if (req.isSecure()) {
+            header.append("; Secure");
+        }
+        res.addHeader("Set-Cookie", header.toString());
+    }
+
+    /**
+     * Returns the value of the named cookie of the request, {@code null} if
+     * there is none.
+     */
+    private static String cookieValue(HttpServletRequest req, String name) {
+        Cookie[] cookies = req.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (name.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a value as the characters allowed in cookie values.
+     */
+    private static String encodeCookieValue(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a value encoded by {@link #encodeCookieValue(String)}.
+     * @return the value, or {@code null} if it is not validly encoded.
+     */
+    private static String decodeCookieValue(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 }
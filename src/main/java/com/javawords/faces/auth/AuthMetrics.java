@@ -0,0 +1,142 @@
+package com.javawords.faces.auth;
+
+/**
+ * A snapshot of the decisions of {@link AuthFilter} counted per rule and outcome, and of the latency of
+ * its checks as a histogram of power of two buckets. Instances are immutable.
+ *
+ * <p>Rules are identified by slot: the bits of the rule classification, see {@link #getRule(int)},
+ * plus {@link #PUBLIC} for requests matching no rule. The admin and the user resources are each counted
+ * as a single rule whatever the number of their patterns, while every role resource has a slot of its
+ * own, see {@link AuthStats}. A request matching several rules is counted for each of them.</p>
+ */
+public final class AuthMetrics {
+
+    /**
+     * The slot of requests matching no rule.
+     */
+    public static final int PUBLIC = Long.SIZE;
+
+    static final int SLOTS = Long.SIZE + 1;
+
+    /**
+     * The row counting every request once, after the rule slots.
+     */
+    static final int ALL = SLOTS;
+
+    static final int ROWS = SLOTS + 1;
+
+    static final int BUCKETS = Long.SIZE;
+
+    static final AuthDecision[] DECISIONS = AuthDecision.values();
+
+    private final String[] rules;
+
+    private final long[] counts;
+
+    private final long[] latencies;
+
+    AuthMetrics(String[] rules, long[] counts, long[] latencies) {
+        this.rules = rules;
+        this.counts = counts;
+        this.latencies = latencies;
+    }
+
+    /**
+     * Returns the metrics recorded since the passed in snapshot was taken.
+     */
+    public AuthMetrics since(AuthMetrics previous) {
+        long[] c = counts.clone();
+        long[] l = latencies.clone();
+        for (int i = 0; i < c.length; i++) c[i] -= previous.counts[i];
+        for (int i = 0; i < l.length; i++) l[i] -= previous.latencies[i];
+        return new AuthMetrics(rules, c, l);
+    }
+
+    /**
+     * Returns the name of the rule of the passed in slot: the resource of the rule, prefixed with its
+     * kind, <code>public</code> for {@link #PUBLIC}, or {@code null} if no rule uses the slot.
+     */
+    public String getRule(int slot) {
+        return slot < rules.length ? rules[slot] : null;
+    }
+
+    /**
+     * Returns the number of requests matching the rule of the passed in slot with the passed in outcome.
+     */
+    public long getCount(int slot, AuthDecision decision) {
+        return counts[slot * DECISIONS.length + decision.ordinal()];
+    }
+
+    /**
+     * Returns the number of requests checked with the passed in outcome.
+     */
+    public long getCount(AuthDecision decision) {
+        return counts[ALL * DECISIONS.length + decision.ordinal()];
+    }
+
+    /**
+     * Returns the number of requests checked.
+     */
+    public long getTotal() {
+        long result = 0;
+        for (long count : latencies) result += count;
+        return result;
+    }
+
+    /**
+     * Returns the number of checks taking from 2<sup>bucket</sup> up to 2<sup>bucket + 1</sup>
+     * nanoseconds.
+     */
+    public long getLatencyCount(int bucket) {
+        return latencies[bucket];
+    }
+
+    /**
+     * Returns an upper bound of the latency in nanoseconds of the passed in fraction of the checks,
+     * for example 0.99 for the 99th percentile, or 0 if there are no checks.
+     */
+    public long getLatencyPercentile(double fraction) {
+        long total = getTotal();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += latencies[bucket];
+            if (seen >= threshold && seen > 0) {
+                return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 2L << bucket;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("total=").append(getTotal());
+        result.append(", p50<=").append(getLatencyPercentile(0.5)).append("ns");
+        result.append(", p99<=").append(getLatencyPercentile(0.99)).append("ns");
+        for (int slot = 0; slot < SLOTS; slot++) {
+            StringBuilder line = new StringBuilder();
+            for (AuthDecision decision : DECISIONS) {
+                long count = getCount(slot, decision);
+                if (count != 0) {
+                    line.append(line.length() == 0 ? "" : " ").append(decision.name().toLowerCase())
+                            .append('=').append(count);
+                }
+            }
+            if (line.length() > 0) {
+                String rule = getRule(slot);
+                result.append(", [").append(rule == null ? "#" + slot : rule).append(' ').append(line)
+                        .append(']');
+            }
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.javawords.faces.auth;
+
+/**
+ * Receives the authorization metrics of {@link AuthFilter} periodically, see the
+ * <code>metricsSink</code> and <code>metricsInterval</code> filter parameters. Implementations need a
+ * public no-argument constructor. They are called on request threads and should hand the metrics
+ * over rather than doing slow work.
+ */
+public interface AuthMetricsSink {
+
+    /**
+     * Publishes the metrics of an interval.
+     * @param metrics the decisions and latencies recorded since the previous call.
+     */
+    void publish(AuthMetrics metrics);
+
+}
@@ -6,6 +6,7 @@ import javax.faces.context.FacesContext;
 import javax.faces.event.PhaseEvent;
 import javax.faces.event.PhaseId;
 import javax.faces.event.PhaseListener;
+import javax.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +67,11 @@ public class AuthPhaseListener implements PhaseListener {
     }
 
     private String getOriginalURI(FacesContext ctx) {
+        Object request = ctx.getExternalContext().getRequest();
+        if (request instanceof HttpServletRequest && AuthFilter.isStateless((HttpServletRequest) request)) {
+            // Kept in a cookie, the session is not used.
+            return AuthFilter.takeOriginalURI((HttpServletRequest) request);
+        }
         logger.debug("Getting '" + AuthFilter.ORIGINAL_URI_PROPERTY_NAME + "' attribute.");
         // Get variable.
         String uri = (String) ctx.getExternalContext().getSessionMap().get(AuthFilter.ORIGINAL_URI_PROPERTY_NAME);
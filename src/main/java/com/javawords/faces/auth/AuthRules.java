@@ -0,0 +1,205 @@
+package com.javawords.faces.auth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable, fully compiled set of the authorization rules of {@link AuthFilter}. The filter
+ * publishes a new instance with a single volatile write whenever the rules change, so that request
+ * threads always see either the previous or the next complete set of rules.
+ */
+final class AuthRules {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthRules.class);
+
+    /**
+     * Classification bits of admin and user resources.
+     */
+    static final long ADMIN_RESOURCE = 1L;
+    static final long USER_RESOURCE = 2L;
+    /**
+     * Classification bits of role resources, one bit per rule.
+     */
+    static final long ROLE_RESOURCES = ~(ADMIN_RESOURCE | USER_RESOURCE);
+    static final int FIRST_ROLE_BIT = 2;
+
+    /**
+     * The names of the rule parameters, the same for init parameters and rule files.
+     */
+    static final String ADMIN_RESOURCES = "adminResources";
+    static final String USER_RESOURCES = "userResources";
+    static final String ROLE_RESOURCES_PARAM = "roleResources";
+    static final String FORWARD_TO = "forwardTo";
+
+    private final List<String> adminResources;
+
+    private final List<String> userResources;
+
+    private final Map<String, List<String>> roleResources;
+
+    private final String forwardTo;
+
+    private final ResourceMatcher matcher;
+
+    private final long[][] roleMasks;
+
+    private final RoleRegistry registry;
+
+    private AuthRules(List<String> adminResources, List<String> userResources,
+            Map<String, List<String>> roleResources, String forwardTo, String contextPath) {
+        this.adminResources = adminResources;
+        this.userResources = userResources;
+        this.roleResources = roleResources;
+        this.forwardTo = forwardTo;
+        List<String> roleNames = new ArrayList<String>();
+        for (List<String> names : roleResources.values()) roleNames.addAll(names);
+        this.registry = new RoleRegistry(roleNames);
+        this.roleMasks = new long[roleResources.size()][];
+        int i = 0;
+        for (List<String> names : roleResources.values()) roleMasks[i++] = registry.mask(names);
+        this.matcher = new ResourceMatcher(contextPath, compileRules());
+    }
+
+    /**
+     * Parses and compiles rules. Missing parameters are taken as empty.
+     * @param params the rule parameters keyed by name.
+     * @param contextPath the context path of the application.
+     */
+    static AuthRules compile(Map<String, String> params, String contextPath) {
+        String adminParam = params.get(ADMIN_RESOURCES);
+        String userParam = params.get(USER_RESOURCES);
+        String roleParam = params.get(ROLE_RESOURCES_PARAM);
+        String forwardTo = params.get(FORWARD_TO);
+        List<String> adminResources = adminParam == null ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(adminParam.split(",")));
+        List<String> userResources = userParam == null ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(userParam.split(",")));
+        Map<String, List<String>> roleResources = roleParam == null
+                ? Collections.<String, List<String>>emptyMap()
+                : Collections.unmodifiableMap(parseRoleResources(roleParam));
+        return new AuthRules(adminResources, userResources, roleResources,
+                forwardTo == null ? "/" : forwardTo.trim(), contextPath);
+    }
+
+    private static Map<String, List<String>> parseRoleResources(String param) {
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        for (String rule : param.split(",")) {
+            int separator = rule.indexOf('=');
+            if (rule.trim().length() == 0) {
+                continue;
+            }
+            if (separator < 0) {
+                logger.warn("Ignoring role resource '" + rule + "', roles missing.");
+                continue;
+            }
+            if (result.size() == Long.SIZE - FIRST_ROLE_BIT) {
+                logger.warn("Ignoring role resource '" + rule + "', too many role resources.");
+                continue;
+            }
+            List<String> names = new ArrayList<String>();
+            for (String name : rule.substring(separator + 1).split("\\|")) {
+                if (name.trim().length() > 0) {
+                    names.add(name.trim());
+                }
+            }
+            result.put(rule.substring(0, separator).trim(), Collections.unmodifiableList(names));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the classification bits of every configured resource.
+     */
+    private Map<String, Long> compileRules() {
+        Map<String, Long> rules = new LinkedHashMap<String, Long>();
+        for (String resrc : adminResources) {
+            addRule(rules, resrc, ADMIN_RESOURCE);
+        }
+        for (String resrc : userResources) {
+            addRule(rules, resrc, USER_RESOURCE);
+        }
+        int bit = FIRST_ROLE_BIT;
+        for (String resrc : roleResources.keySet()) {
+            addRule(rules, resrc, 1L << bit++);
+        }
+        return rules;
+    }
+
+    private static void addRule(Map<String, Long> rules, String resrc, long bits) {
+        String rule = resrc.trim();
+        if (rule.length() == 0) {
+            return;
+        }
+        Long existing = rules.get(rule);
+        rules.put(rule, existing == null ? bits : existing | bits);
+    }
+
+    /**
+     * Logs the rules, as the filter does on initialization and on every reload.
+     */
+    void log() {
+        logger.info(!adminResources.isEmpty() ? "Admin Resources: " + adminResources : "No Admin Resources set.");
+        logger.info(!userResources.isEmpty() ? "User Resources: " + userResources : "No User Resources set.");
+        logger.info(!roleResources.isEmpty() ? "Role Resources: " + roleResources : "No Role Resources set.");
+        logger.info("Unauthorized users are forwarded to " + forwardTo);
+    }
+
+    /**
+     * Returns the classification bits of the passed in URI.
+     */
+    long match(String uri) {
+        return matcher.match(uri);
+    }
+
+    /**
+     * Returns the role masks of the role resources, indexed by rule bit minus {@link #FIRST_ROLE_BIT}.
+     */
+    long[] roleMask(int rule) {
+        return roleMasks[rule];
+    }
+
+    /**
+     * Returns the names of the rules of the classification bits, indexed by bit, and
+     * <code>public</code> for requests matching no rule, see {@link AuthMetrics}.
+     */
+    String[] ruleNames() {
+        String[] result = new String[AuthMetrics.SLOTS];
+        result[0] = ADMIN_RESOURCES;
+        result[1] = USER_RESOURCES;
+        int bit = FIRST_ROLE_BIT;
+        for (String resrc : roleResources.keySet()) {
+            result[bit++] = ROLE_RESOURCES_PARAM + ":" + resrc;
+        }
+        result[AuthMetrics.PUBLIC] = "public";
+        return result;
+    }
+
+    /**
+     * Returns the names of the rules matched by the passed in classification bits.
+     */
+    String describe(long access) {
+        String[] names = ruleNames();
+        StringBuilder result = new StringBuilder();
+        while (access != 0) {
+            int bit = Long.numberOfTrailingZeros(access);
+            result.append(result.length() == 0 ? "" : ", ").append(names[bit]);
+            access &= access - 1;
+        }
+        return result.toString();
+    }
+
+    RoleRegistry getRegistry() {
+        return registry;
+    }
+
+    String getForwardTo() {
+        return forwardTo;
+    }
+
+}
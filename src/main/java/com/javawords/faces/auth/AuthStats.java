@@ -0,0 +1,73 @@
+package com.javawords.faces.auth;
+
+/**
+ * Counters of the access checks of {@link AuthFilter}, shared by all the requests served by this
+ * instance. Recording a check updates striped counters, so that it costs a few uncontended atomic
+ * increments and can be left on in production.
+ *
+ * <p>Decisions are counted per classification bit of the matched rules rather than per pattern: all the
+ * <code>adminResources</code> patterns share one counter, all the <code>userResources</code> patterns
+ * another, and every <code>roleResources</code> rule has its own. The classification bits are what the
+ * single pass of {@link ResourceMatcher} yields, counting per pattern would take a second match of
+ * every request. To tell apart the patterns of a list, split them into role resources.</p>
+ */
+public final class AuthStats {
+
+    private static final int OUTCOMES = AuthMetrics.DECISIONS.length;
+
+    private static final AuthStats INSTANCE = new AuthStats();
+
+    private final StripedCounters decisions = new StripedCounters(AuthMetrics.ROWS * OUTCOMES);
+
+    private final StripedCounters latencies = new StripedCounters(AuthMetrics.BUCKETS);
+
+    private volatile String[] rules = new String[0];
+
+    private AuthStats() {
+    }
+
+    public static AuthStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the metrics recorded since this instance started.
+     */
+    public AuthMetrics snapshot() {
+        return new AuthMetrics(rules, decisions.get(), latencies.get());
+    }
+
+    /**
+     * Returns the number of requests checked with the passed in outcome since this instance started.
+     */
+    public long getCount(AuthDecision decision) {
+        return decisions.get(AuthMetrics.ALL * OUTCOMES + decision.ordinal());
+    }
+
+    /**
+     * Records a check.
+     * @param access the classification bits of the requested resource.
+     * @param decision the outcome of the check.
+     * @param nanos the duration of the check.
+     */
+    void record(long access, AuthDecision decision, long nanos) {
+        int outcome = decision.ordinal();
+        if (access == 0) {
+            decisions.increment(AuthMetrics.PUBLIC * OUTCOMES + outcome);
+        }
+        while (access != 0) {
+            decisions.increment(Long.numberOfTrailingZeros(access) * OUTCOMES + outcome);
+            access &= access - 1;
+        }
+        decisions.increment(AuthMetrics.ALL * OUTCOMES + outcome);
+        latencies.increment(AuthMetrics.bucket(nanos));
+    }
+
+    /**
+     * Sets the names of the rules of the classification bits, as the rules are compiled.
+     */
+    void setRules(String[] rules) {
+        this.rules = rules;
+    }
+
+}
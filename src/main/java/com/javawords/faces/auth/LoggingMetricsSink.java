@@ -0,0 +1,22 @@
+package com.javawords.faces.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A metrics sink writing a summary line per interval to the log, selected by setting the
+ * <code>metricsSink</code> parameter of {@link AuthFilter} to <code>log</code>.
+ */
+public class LoggingMetricsSink implements AuthMetricsSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoggingMetricsSink.class);
+
+    @Override
+    public void publish(AuthMetrics metrics) {
+        if (metrics.getTotal() == 0) {
+            return;
+        }
+        logger.info("Authorization: {}", metrics);
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.javawords.faces.auth;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Matches request URIs against a set of resource rules compiled once, returning the classification
+ * bits of all the rules matching a URI in a single pass and without allocating.
+ *
+ * <p>Two kinds of rules are supported, the ones accepted by {@link AuthFilter}:</p>
+ * <ul>
+ *  <li>Path rules, such as <code>/admin/</code>, matching URIs starting with the context path followed
+ * by the rule. They are kept in a prefix trie walked along the URI.
+ *  </li>
+ *  <li>Extension rules, such as <code>*.xhtml</code> or <code>*.tar.gz</code>, matching URIs whose last
+ * path segment ends with a dot followed by the extension. They are kept in a hash table probed for every
+ * dot of the last path segment.
+ *  </li>
+ * </ul>
+ * Instances are immutable and safe to share between threads.
+ */
+public final class ResourceMatcher {
+
+    private final Node root;
+
+    private final String[] extensions;
+
+    private final long[] extensionBits;
+
+    private final int mask;
+
+    /**
+     * Compiles the passed in rules.
+     * @param contextPath the context path of the application, prepended to the path rules.
+     * @param rules the classification bits of every rule, keyed by the rule.
+     */
+    public ResourceMatcher(String contextPath, Map<String, Long> rules) {
+        Node trie = new Node();
+        int count = 0;
+        for (String rule : rules.keySet()) if (rule.startsWith("*.")) count++;
+        int size = Integer.highestOneBit(Math.max(1, count) * 2) * 2;
+        extensions = new String[size];
+        extensionBits = new long[size];
+        mask = size - 1;
+        for (Map.Entry<String, Long> e : rules.entrySet()) {
+            String rule = e.getKey();
+            if (rule.startsWith("*.")) {
+                String extension = rule.substring(2);
+                int i = hash(extension, 0, extension.length()) & mask;
+                while (extensions[i] != null && !extensions[i].equals(extension)) i = (i + 1) & mask;
+                extensions[i] = extension;
+                extensionBits[i] |= e.getValue();
+            } else {
+                trie.add(contextPath + rule, 0, e.getValue());
+            }
+        }
+        root = trie;
+    }
+
+    /**
+     * Returns the classification bits of all the rules matching the passed in URI, zero if none does.
+     */
+    public long match(String uri) {
+        long result = root.bits;
+        Node node = root;
+        int length = uri.length();
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(uri.charAt(i));
+            if (node != null) result |= node.bits;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            char c = uri.charAt(i);
+            if (c == '/') break;
+            if (c == '.') result |= extensionBits(uri, i + 1);
+        }
+        return result;
+    }
+
+    private long extensionBits(String uri, int start) {
+        int length = uri.length() - start;
+        int i = hash(uri, start, length) & mask;
+        while (extensions[i] != null) {
+            String extension = extensions[i];
+            if (extension.length() == length && uri.regionMatches(start, extension, 0, length))
+                return extensionBits[i];
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Hashes a range of characters the way {@link String#hashCode()} does, spreading the high bits.
+     */
+    private static int hash(String s, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) h = 31 * h + s.charAt(i);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A trie node, children are kept sorted by character for a binary search.
+     */
+    private static final class Node {
+
+        private char[] labels = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private long bits;
+
+        void add(String path, int index, long value) {
+            if (index == path.length()) {
+                bits |= value;
+                return;
+            }
+            char c = path.charAt(index);
+            int i = Arrays.binarySearch(labels, c);
+            if (i < 0) {
+                i = -i - 1;
+                char[] newLabels = new char[labels.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(labels, 0, newLabels, 0, i);
+                System.arraycopy(children, 0, newChildren, 0, i);
+                newLabels[i] = c;
+                newChildren[i] = new Node();
+                System.arraycopy(labels, i, newLabels, i + 1, labels.length - i);
+                System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+                labels = newLabels;
+                children = newChildren;
+            }
+            children[i].add(path, index + 1, value);
+        }
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+    }
+
+}
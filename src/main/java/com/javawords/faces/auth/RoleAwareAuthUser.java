@@ -0,0 +1,22 @@
+package com.javawords.faces.auth;
+
+import java.util.Set;
+
+/**
+ * An {@link AuthUser} granted named roles and permissions, checked by {@link AuthFilter} against its
+ * <code>roleResources</code> rules and by {@link AuthFilter#isUserInRole(java.lang.String)}.
+ * Roles and permissions share a single namespace as far as the rules are concerned.
+ */
+public interface RoleAwareAuthUser extends AuthUser {
+
+    /**
+     * Returns the names of the roles granted to the user.
+     */
+    Set<String> getRoles();
+
+    /**
+     * Returns the names of the permissions granted to the user.
+     */
+    Set<String> getPermissions();
+
+}
@@ -0,0 +1,75 @@
+package com.javawords.faces.auth;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the role and permission names used by the authorization rules into bit indexes. Names are
+ * indexed in the order the rules list them, so instances configured alike agree on the indexes and on
+ * the registry id, and a {@link RoleSet} stored in a session stays valid on every instance.
+ */
+public final class RoleRegistry {
+
+    private final Map<String, Integer> indexes;
+
+    private final long id;
+
+    /**
+     * @param names the role and permission names, duplicates are indexed once.
+     */
+    public RoleRegistry(Collection<String> names) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        long hash = 17;
+        for (String name : names) {
+            if (result.containsKey(name)) continue;
+            result.put(name, result.size());
+            hash = hash * 31 + name.hashCode();
+        }
+        this.indexes = Collections.unmodifiableMap(result);
+        this.id = hash * 31 + result.size();
+    }
+
+    /**
+     * Returns an id identifying the names and indexes of this registry.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the index of the passed in name, -1 if it is not registered.
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns a bit mask holding the passed in names. Names not registered are ignored.
+     */
+    public long[] mask(Collection<String> names) {
+        long[] result = new long[(indexes.size() + 63) >>> 6];
+        for (String name : names) {
+            int index = indexOf(name);
+            if (index >= 0) result[index >>> 6] |= 1L << index;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the role set of the passed in user, empty unless the user is a {@link RoleAwareAuthUser}.
+     */
+    public RoleSet roleSetOf(AuthUser user) {
+        long[] words = new long[(indexes.size() + 63) >>> 6];
+        if (user instanceof RoleAwareAuthUser) {
+            RoleAwareAuthUser roleUser = (RoleAwareAuthUser) user;
+            long[] roles = mask(roleUser.getRoles());
+            long[] permissions = mask(roleUser.getPermissions());
+            for (int i = 0; i < words.length; i++) words[i] = roles[i] | permissions[i];
+        }
+        return new RoleSet(id, words);
+    }
+
+}
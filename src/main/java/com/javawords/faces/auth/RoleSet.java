@@ -0,0 +1,47 @@
+package com.javawords.faces.auth;
+
+import java.io.Serializable;
+
+/**
+ * The roles and permissions of a user as a bitset over the indexes of a {@link RoleRegistry}, computed
+ * once at login so that authorization checks are plain bit tests. A role set is only valid for the
+ * registry it was computed with, which it identifies by the registry id.
+ */
+public final class RoleSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long registryId;
+
+    private final long[] words;
+
+    RoleSet(long registryId, long[] words) {
+        this.registryId = registryId;
+        this.words = words;
+    }
+
+    /**
+     * Returns the id of the registry this role set was computed with.
+     */
+    public long getRegistryId() {
+        return registryId;
+    }
+
+    /**
+     * Returns true if the role with the passed in registry index is part of this set.
+     */
+    public boolean contains(int index) {
+        int word = index >>> 6;
+        return word < words.length && (words[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns true if this set holds any of the roles of the passed in mask.
+     */
+    public boolean intersects(long[] mask) {
+        int length = Math.min(words.length, mask.length);
+        for (int i = 0; i < length; i++) if ((words[i] & mask[i]) != 0) return true;
+        return false;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.javawords.faces.auth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An array of counters split into stripes, so that threads counting the same event mostly update
+ * different cache lines instead of contending on one. Threads are assigned stripes by id, reading a
+ * counter sums its stripes.
+ */
+final class StripedCounters {
+
+    private static final int STRIPES =
+            Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2));
+
+    /**
+     * Longs left unused between stripes, keeping the counters of different stripes on different
+     * cache lines.
+     */
+    private static final int PADDING = 16;
+
+    private final int size;
+
+    private final int stride;
+
+    private final AtomicLongArray cells;
+
+    StripedCounters(int size) {
+        this.size = size;
+        this.stride = size + PADDING;
+        this.cells = new AtomicLongArray(stride * STRIPES);
+    }
+
+    void increment(int index) {
+        cells.getAndIncrement(stripe() + index);
+    }
+
+    long get(int index) {
+        long result = 0;
+        for (int i = 0; i < STRIPES; i++) result += cells.get(i * stride + index);
+        return result;
+    }
+
+    /**
+     * Returns the value of every counter. Counters are read one by one, not atomically as a whole.
+     */
+    long[] get() {
+        long[] result = new long[size];
+        for (int i = 0; i < STRIPES; i++) {
+            int offset = i * stride;
+            for (int j = 0; j < size; j++) result[j] += cells.get(offset + j);
+        }
+        return result;
+    }
+
+    private int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * stride;
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.javawords.faces.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and verifies the HMAC-SHA256 signed tokens of the stateless mode of {@link AuthFilter}. A token
+ * carries the name of the user, the admin flag, the roles and permissions and the expiration time, so
+ * that verifying it needs neither the session nor any other remote call. Roles are carried by name
+ * rather than as the bits of the current rules, so that tokens stay valid when the rules change, and
+ * verifying a token yields a {@link TokenUser}, not the user instance the application registered.
+ *
+ * <p>Tokens are signed with the first configured key and verified with the key they name, so keys can
+ * be rotated by adding the new key first and dropping the old one once the tokens it signed expire.</p>
+ *
+ * <p>Instances are immutable and safe to share between threads.</p>
+ */
+final class TokenAuthenticator {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int FORMAT = 1;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++) BASE64_VALUES[BASE64[i]] = i;
+    }
+
+    private final String signingKeyId;
+
+    private final Map<String, Mac> keys;
+
+    private final long maxAge;
+
+    /**
+     * @param keys the keys keyed by id, the first one signs new tokens.
+     * @param maxAge milliseconds a token is valid for.
+     */
+    TokenAuthenticator(Map<String, byte[]> keys, long maxAge) throws GeneralSecurityException {
+        if (keys.isEmpty()) throw new IllegalArgumentException("At least one token key is required.");
+        Map<String, Mac> macs = new LinkedHashMap<String, Mac>();
+        for (Map.Entry<String, byte[]> e : keys.entrySet()) {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(e.getValue(), ALGORITHM));
+            macs.put(e.getKey(), mac);
+        }
+        this.signingKeyId = keys.keySet().iterator().next();
+        this.keys = macs;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Parses keys written as a comma-separated list of <code>id:secret</code> pairs, the secrets being
+     * base64url encoded.
+     */
+    static Map<String, byte[]> parseKeys(String param) {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (String entry : param.split(",")) {
+            int separator = entry.indexOf(':');
+            if (separator <= 0) throw new IllegalArgumentException("Token keys must be written as id:secret.");
+            byte[] secret = decode(entry.substring(separator + 1).trim());
+            if (secret == null || secret.length < 16)
+                throw new IllegalArgumentException("Token key " + entry.substring(0, separator).trim()
+                        + " must be base64url encoded and at least 16 bytes long.");
+            result.put(entry.substring(0, separator).trim(), secret);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the milliseconds a token is valid for.
+     */
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Issues a token for the passed in user, valid for the configured time from now.
+     */
+    String issue(AuthUser user) {
+        String name = user instanceof Principal ? ((Principal) user).getName() : "";
+        Set<String> roles = Collections.emptySet();
+        Set<String> permissions = Collections.emptySet();
+        if (user instanceof RoleAwareAuthUser) {
+            roles = ((RoleAwareAuthUser) user).getRoles();
+            permissions = ((RoleAwareAuthUser) user).getPermissions();
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT);
+            out.writeUTF(signingKeyId);
+            out.writeLong(System.currentTimeMillis() + maxAge);
+            out.writeUTF(name == null ? "" : name);
+            out.writeBoolean(user.isAdmin());
+            writeNames(out, roles);
+            writeNames(out, permissions);
+            out.flush();
+            byte[] payload = bytes.toByteArray();
+            return encode(payload) + '.' + encode(sign(keys.get(signingKeyId), payload));
+        } catch (IOException iox) {
+            throw new IllegalStateException(iox);
+        }
+    }
+
+    /**
+     * Verifies a token.
+     * @return the user the token was issued for, or {@code null} if the token is malformed, not signed
+     * by a known key, or expired.
+     */
+    TokenUser verify(String token) {
+        int separator = token.indexOf('.');
+        if (separator < 0) return null;
+        byte[] payload = decode(token.substring(0, separator));
+        byte[] signature = decode(token.substring(separator + 1));
+        if (payload == null || signature == null) return null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readUnsignedByte() != FORMAT) return null;
+            Mac mac = keys.get(in.readUTF());
+            if (mac == null || !MessageDigest.isEqual(signature, sign(mac, payload))) return null;
+            long expires = in.readLong();
+            if (System.currentTimeMillis() > expires) return null;
+            String name = in.readUTF();
+            boolean admin = in.readBoolean();
+            Set<String> roles = readNames(in);
+            Set<String> permissions = readNames(in);
+            return new TokenUser(name, admin, roles, permissions, expires);
+        } catch (IOException iox) {
+            return null;
+        }
+    }
+
+    private static byte[] sign(Mac prototype, byte[] payload) {
+        try {
+            // Mac instances are not thread safe, sign with a copy of the initialized one.
+            Mac mac = (Mac) prototype.clone();
+            return mac.doFinal(payload);
+        } catch (CloneNotSupportedException cnse) {
+            throw new IllegalStateException(cnse);
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, Collection<String> names) throws IOException {
+        out.writeShort(names.size());
+        for (String name : names) out.writeUTF(name);
+    }
+
+    private static Set<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        Set<String> result = new LinkedHashSet<String>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) result.add(in.readUTF());
+        return result;
+    }
+
+    /**
+     * Encodes bytes as unpadded base64url, safe to use in cookie values.
+     */
+    static String encode(byte[] data) {
+        StringBuilder result = new StringBuilder((data.length * 4 + 2) / 3);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xff) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xff;
+            result.append(BASE64[(b >>> 18) & 0x3f]).append(BASE64[(b >>> 12) & 0x3f]);
+            if (i + 1 < data.length) result.append(BASE64[(b >>> 6) & 0x3f]);
+            if (i + 2 < data.length) result.append(BASE64[b & 0x3f]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Decodes unpadded base64url.
+     * @return the decoded bytes, or {@code null} if the text is not valid base64url.
+     */
+    static byte[] decode(String text) {
+        int length = text.length();
+        if (length % 4 == 1) return null;
+        byte[] result = new byte[length * 3 / 4];
+        int bits = 0;
+        int count = 0;
+        int index = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) return null;
+            bits = (bits << 6) | value;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                result[index++] = (byte) (bits >>> count);
+            }
+        }
+        return result;
+    }
+
+}
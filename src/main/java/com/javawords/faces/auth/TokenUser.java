@@ -0,0 +1,63 @@
+package com.javawords.faces.auth;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The user carried by a signed authentication token, as seen by {@link AuthFilter} in stateless mode.
+ */
+public final class TokenUser implements RoleAwareAuthUser, Principal {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+
+    private final boolean admin;
+
+    private final Set<String> roles;
+
+    private final Set<String> permissions;
+
+    private final long expires;
+
+    TokenUser(String name, boolean admin, Set<String> roles, Set<String> permissions, long expires) {
+        this.name = name;
+        this.admin = admin;
+        this.roles = Collections.unmodifiableSet(new LinkedHashSet<String>(roles));
+        this.permissions = Collections.unmodifiableSet(new LinkedHashSet<String>(permissions));
+        this.expires = expires;
+    }
+
+    /**
+     * Returns the name of the user, the {@link Principal} name of the registered user or an empty string.
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    @Override
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    @Override
+    public Set<String> getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * Returns the time in milliseconds the token expires at.
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+}
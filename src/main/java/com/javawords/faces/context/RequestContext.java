@@ -0,0 +1,118 @@
+package com.javawords.faces.context;
+
+import java.util.concurrent.Callable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The request and response being served, made available to code running on behalf of the request
+ * without passing them around. A context is attached to the thread serving the request by
+ * {@link com.javawords.faces.auth.AuthFilter} and is never inherited by threads the request spawns;
+ * it has to be captured and attached explicitly, as {@link #wrap(Runnable)} and
+ * {@link RequestContextExecutors} do:
+ * <pre>
+ * RequestContext context = RequestContext.current();
+ * executor.submit(context.wrap(task));
+ * </pre>
+ * Every {@link #attach()} must be paired with a {@link #restore(RequestContext)} in a finally block.
+ */
+public final class RequestContext {
+
+    private static final ThreadLocal<RequestContext> CURRENT = new ThreadLocal<RequestContext>();
+
+    private final HttpServletRequest request;
+
+    private final HttpServletResponse response;
+
+    public RequestContext(HttpServletRequest request, HttpServletResponse response) {
+        if (request == null) throw new IllegalArgumentException("The request is required.");
+        this.request = request;
+        this.response = response;
+    }
+
+    /**
+     * Returns the context attached to the current thread, {@code null} if there is none.
+     */
+    public static RequestContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Returns the context attached to the current thread.
+     * @throws IllegalStateException if there is none.
+     */
+    public static RequestContext require() {
+        RequestContext context = CURRENT.get();
+        if (context == null) throw new IllegalStateException("No request context is attached to this thread.");
+        return context;
+    }
+
+    /**
+     * Attaches this context to the current thread.
+     * @return the context previously attached, to be passed to {@link #restore(RequestContext)}.
+     */
+    public RequestContext attach() {
+        RequestContext previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * Attaches the passed in context to the current thread again, detaching the current one.
+     * @param previous the context returned by {@link #attach()}, {@code null} to leave the thread
+     * without context.
+     */
+    public static void restore(RequestContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns the response, {@code null} if the context was created without one.
+     */
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns a task running the passed in one with this context attached, detaching it afterwards.
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                RequestContext previous = attach();
+                try {
+                    task.run();
+                } finally {
+                    restore(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a task calling the passed in one with this context attached, detaching it afterwards.
+     */
+    public <T> Callable<T> wrap(final Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                RequestContext previous = attach();
+                try {
+                    return task.call();
+                } finally {
+                    restore(previous);
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.javawords.faces.context;
+
+import com.google.appengine.api.ThreadManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Wrappers of executors and thread factories propagating the {@link RequestContext} of the submitting
+ * thread to the tasks they run, and detaching it once a task completes so that pooled threads never
+ * keep a request.
+ */
+public final class RequestContextExecutors {
+
+    private RequestContextExecutors() {
+    }
+
+    /**
+     * Returns an executor running every task with the context of the thread submitting it. Tasks
+     * submitted without a context run without one.
+     */
+    public static ExecutorService propagating(ExecutorService executor) {
+        return new PropagatingExecutorService(executor);
+    }
+
+    /**
+     * Returns a thread factory whose threads run with the context of the thread creating them. Suited
+     * to threads living no longer than the request, use {@link #propagating(ExecutorService)} for pools
+     * shared between requests.
+     */
+    public static ThreadFactory propagating(final ThreadFactory factory) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                return factory.newThread(wrap(RequestContext.current(), task));
+            }
+        };
+    }
+
+    /**
+     * Returns a factory of GAE request threads, see {@link ThreadManager#currentRequestThreadFactory()},
+     * running with the context of the current request. Must be called while serving a request.
+     */
+    public static ThreadFactory requestThreadFactory() {
+        return propagating(ThreadManager.currentRequestThreadFactory());
+    }
+
+    static Runnable wrap(RequestContext context, Runnable task) {
+        return context == null ? detached(task) : context.wrap(task);
+    }
+
+    static <T> Callable<T> wrap(RequestContext context, final Callable<T> task) {
+        if (context != null) return context.wrap(task);
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                RequestContext previous = RequestContext.current();
+                RequestContext.restore(null);
+                try {
+                    return task.call();
+                } finally {
+                    RequestContext.restore(previous);
+                }
+            }
+        };
+    }
+
+    private static Runnable detached(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                RequestContext previous = RequestContext.current();
+                RequestContext.restore(null);
+                try {
+                    task.run();
+                } finally {
+                    RequestContext.restore(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Captures the context of the submitting thread for every task.
+     */
+    private static final class PropagatingExecutorService implements ExecutorService {
+
+        private final ExecutorService delegate;
+
+        PropagatingExecutorService(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        private static <T> List<Callable<T>> wrapAll(Collection<? extends Callable<T>> tasks) {
+            RequestContext context = RequestContext.current();
+            List<Callable<T>> result = new ArrayList<Callable<T>>(tasks.size());
+            for (Callable<T> task : tasks) result.add(wrap(context, task));
+            return result;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(wrap(RequestContext.current(), command));
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            return delegate.submit(wrap(RequestContext.current(), task));
+        }
+
+        @Override
+        public <T> Future<T> submit(Runnable task, T result) {
+            return delegate.submit(wrap(RequestContext.current(), task), result);
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            return delegate.submit(wrap(RequestContext.current(), task));
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
+                throws InterruptedException {
+            return delegate.invokeAll(wrapAll(tasks));
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout,
+                TimeUnit unit) throws InterruptedException {
+            return delegate.invokeAll(wrapAll(tasks), timeout, unit);
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
+                throws InterruptedException, ExecutionException {
+            return delegate.invokeAny(wrapAll(tasks));
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return delegate.invokeAny(wrapAll(tasks), timeout, unit);
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+
+    }
+
+}
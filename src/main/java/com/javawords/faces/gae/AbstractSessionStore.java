@@ -0,0 +1,57 @@
+package com.javawords.faces.gae;
+
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Base class of the session stores, keeping the {@link SessionStoreStats} of every store the same way.
+ */
+public abstract class AbstractSessionStore implements SessionStore {
+    
+    private final SessionStoreStats stats = new SessionStoreStats();
+    
+    /**
+     * Loads a session, see {@link SessionStore#load(java.lang.String, long)}.
+     */
+    protected abstract SessionRecord doLoad(String sessionId, long knownVersion);
+    
+    /**
+     * Writes the changes of a session, see 
+     * {@link SessionStore#save(java.lang.String, com.javawords.faces.gae.SessionRecord, java.util.Set, java.util.Set)}.
+     */
+    protected abstract Future<?> doSave(String sessionId, SessionRecord record, Set<String> updated, 
+            Set<String> removed);
+
+    @Override
+    public final SessionRecord load(String sessionId, long knownVersion) {
+        long start = System.nanoTime();
+        SessionRecord result = doLoad(sessionId, knownVersion);
+        stats.recordLoad(System.nanoTime() - start, result);
+        return result;
+    }
+
+    @Override
+    public final Future<?> save(String sessionId, SessionRecord record, Set<String> updated, 
+            Set<String> removed) {
+        long start = System.nanoTime();
+        Future<?> result = doSave(sessionId, record, updated, removed);
+        recordSave(start, record, updated);
+        return result;
+    }
+    
+    /**
+     * Records a write started at the passed in {@link System#nanoTime()}, for writes not going through
+     * {@link #doSave(java.lang.String, com.javawords.faces.gae.SessionRecord, java.util.Set, java.util.Set)}.
+     */
+    protected final void recordSave(long start, SessionRecord record, Set<String> updated) {
+        long bytes = 0;
+        for (String name : updated) bytes += record.getData().get(name).length;
+        stats.recordSave(System.nanoTime() - start, bytes);
+    }
+
+    @Override
+    public SessionStoreStats getStats() {
+        return stats;
+    }
+    
+}
@@ -0,0 +1,111 @@
+package com.javawords.faces.gae;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The memcache entry stored by {@link MemcacheSessionStore} under the key of an attribute too large for a
+ * single memcache value. The serialized attribute is split in chunks stored under keys of their own,
+ * and the manifest records their number, the total length and a checksum of the attribute, so that a
+ * set of chunks partially evicted or mixed with chunks of another write is detected when joining them.
+ */
+class ChunkManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+
+    private final int length;
+
+    private final int count;
+
+    private final long checksum;
+
+    private ChunkManifest(long version, int length, int count, long checksum) {
+        this.version = version;
+        this.length = length;
+        this.count = count;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Splits the serialized form of an attribute in chunks.
+     * @param sessionId the id of the session.
+     * @param name the name of the attribute.
+     * @param data the serialized attribute.
+     * @param version the version of the write storing the attribute.
+     * @param chunkSize the maximum size of a chunk.
+     * @return the manifest keyed by the attribute key along with the chunks keyed by their own keys, all
+     * to be written in a single batch.
+     */
+    static Map<String, Object> split(String sessionId, String name, byte[] data, long version, int chunkSize) {
+        int count = (data.length + chunkSize - 1) / chunkSize;
+        Map<String, Object> result = new HashMap<String, Object>(count * 4 / 3 + 2);
+        for (int i = 0; i < count; i++) {
+            int from = i * chunkSize;
+            byte[] chunk = new byte[Math.min(chunkSize, data.length - from)];
+            System.arraycopy(data, from, chunk, 0, chunk.length);
+            result.put(chunkKey(sessionId, name, version, i), chunk);
+        }
+        result.put(SessionIndex.attributeKey(sessionId, name, version),
+                new ChunkManifest(version, data.length, count, checksum(data)));
+        return result;
+    }
+
+    /**
+     * Returns the version of the write that stored the chunked attribute.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the memcache keys of the chunks of the named attribute.
+     */
+    List<String> getChunkKeys(String sessionId, String name) {
+        List<String> result = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) result.add(chunkKey(sessionId, name, version, i));
+        return result;
+    }
+
+    /**
+     * Joins the chunks of the named attribute back into its serialized form.
+     * @param chunks the values read from memcache, keyed by their keys.
+     * @return the serialized attribute, or {@code null} if a chunk is missing or the joined chunks do not
+     * match the length and checksum recorded in this manifest.
+     */
+    byte[] join(String sessionId, String name, Map<String, Object> chunks) {
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            Object chunk = chunks.get(chunkKey(sessionId, name, version, i));
+            if (!(chunk instanceof byte[])) return null;
+            byte[] data = (byte[]) chunk;
+            if (offset + data.length > length) return null;
+            System.arraycopy(data, 0, result, offset, data.length);
+            offset += data.length;
+        }
+        if (offset != length || checksum(result) != checksum) return null;
+        return result;
+    }
+
+    /**
+     * Returns the memcache key of a chunk, qualified with the version of the write like the key of the
+     * attribute. Session ids contain neither separator, so chunk keys never collide with the keys of the
+     * attributes.
+     */
+    private static String chunkKey(String sessionId, String name, long version, int chunk) {
+        return sessionId + '#' + chunk + '/' + Long.toHexString(version) + '/' + name;
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.javawords.faces.gae;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future completing once all the futures it is made of have completed, used to hand out the several
+ * asynchronous operations of a session write as a single one.
+ */
+class CompositeFuture implements Future<Void> {
+    
+    private final List<Future<?>> futures;
+
+    CompositeFuture(List<? extends Future<?>> futures) {
+        this.futures = new ArrayList<Future<?>>(futures);
+    }
+    
+    /**
+     * Returns the single future of the passed in list, or a composite of all of them.
+     */
+    static Future<?> of(List<? extends Future<?>> futures) {
+        return futures.size() == 1 ? futures.get(0) : new CompositeFuture(futures);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean result = false;
+        for (Future<?> f : futures) result |= f.cancel(mayInterruptIfRunning);
+        return result;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        for (Future<?> f : futures) if (f.isCancelled()) return true;
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        for (Future<?> f : futures) if (!f.isDone()) return false;
+        return true;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        for (Future<?> f : futures) f.get();
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) 
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<?> f : futures) f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return null;
+    }
+    
+}
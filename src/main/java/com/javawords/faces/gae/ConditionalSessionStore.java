@@ -0,0 +1,28 @@
+package com.javawords.faces.gae;
+
+import java.util.Set;
+
+/**
+ * A {@link SessionStore} able to write a session only if it has not been written by anyone else since
+ * it was read, used by the optimistic persist mode so that concurrent requests of the same session
+ * merge their changes instead of overwriting each other.
+ * @see GAESessionConfig
+ */
+public interface ConditionalSessionStore extends SessionStore {
+
+    /**
+     * Writes the changes of a session, provided that the stored session is still at the expected
+     * version. A session that is not stored at all is written regardless of the expected version, unless
+     * another write stores it first. The write is complete when this method returns.
+     * @param sessionId the id of the session.
+     * @param expectedVersion the version of the session the changes were made to.
+     * @param record the state of the session after the changes.
+     * @param updated the names of the attributes added or changed.
+     * @param removed the names of the attributes removed.
+     * @return {@code null} if the session was written, otherwise the session as currently stored,
+     * carrying the version to expect when retrying.
+     */
+    SessionRecord saveIfCurrent(String sessionId, long expectedVersion, SessionRecord record,
+            Set<String> updated, Set<String> removed);
+
+}
@@ -0,0 +1,406 @@
+package com.javawords.faces.gae;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tiered session store, keeping sessions in memcache for fast access and in the Datastore so that
+ * they survive memcache evictions.
+ *
+ * <p>Writes go to memcache right away, while Datastore writes are deferred: the latest state of every
+ * changed session is queued and written in a single batch once the queue reaches the batch size or its
+ * oldest entry reaches the write delay. Where the runtime allows background threads, as on backends and
+ * outside App Engine, a timer flushes the queue once the write delay has passed. Front end instances
+ * allow no background work, there the batch is written by the next request of the instance loading or
+ * saving a session once the delay has passed.</p>
+ *
+ * <p>A session has at most one Datastore write in flight. A session written again while its previous
+ * write is in flight stays queued for a later batch, so the writes of a session reach the Datastore in
+ * order, and the state of a failed write is queued again only if no newer state of the session is
+ * queued.</p>
+ *
+ * <p>A session missing from memcache, or read back from memcache with attributes evicted or not matching
+ * its index, is read from the queue or the Datastore instead and written back to memcache. A session
+ * read partially from memcache and found nowhere else is returned as read, but the write following
+ * that read is not queued for the Datastore, so that it never overwrites the attributes memcache
+ * lost.</p>
+ *
+ * <p>Each session is stored as a single entity, so sessions are limited to the Datastore entity size of
+ * 1MB. {@link #close()} writes the queued sessions when the application stops, called by
+ * {@link GAESessionListener}. Writes queued when an instance stops without it are lost, while still in
+ * memcache.
+ * Entities of sessions past their absolute expiration are removed when read, idle sessions are left in
+ * the Datastore.</p>
+ */
+public class DatastoreSessionStore extends AbstractSessionStore implements ConditionalSessionStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatastoreSessionStore.class);
+
+    /**
+     * The kind of the session entities.
+     */
+    public static final String KIND = "GAESession";
+
+    private static final String VERSION_PROPERTY = "version";
+    private static final String EXPIRES_PROPERTY = "expires";
+    private static final String DATA_PREFIX = "a.";
+    private static final String VERSION_PREFIX = "v.";
+
+    private final MemcacheSessionStore memcache;
+
+    private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    private final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService();
+
+    private final int batchSize;
+
+    private final long writeDelay;
+
+    /**
+     * The latest state of the sessions not yet written to the Datastore.
+     */
+    private final ConcurrentMap<String, SessionRecord> queue = new ConcurrentHashMap<String, SessionRecord>();
+
+    /**
+     * Time the oldest queued write was queued at, zero if the queue is empty.
+     */
+    private final AtomicLong queuedSince = new AtomicLong();
+
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    /**
+     * The batches written and not yet checked, checked on every flush once done so that failed writes
+     * are queued again.
+     */
+    private final Queue<Batch> batches = new ConcurrentLinkedQueue<Batch>();
+
+    /**
+     * The batch writing each session in flight.
+     */
+    private final ConcurrentMap<String, Batch> inFlight = new ConcurrentHashMap<String, Batch>();
+
+    /**
+     * Sessions read partially from memcache and found nowhere else, keyed by id along with the time of
+     * the read. Their next write is not queued.
+     */
+    private final ConcurrentMap<String, Long> partialReads = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Milliseconds after which a partial read no longer holds back the write of its session.
+     */
+    private static final long PARTIAL_READ_TIMEOUT = 60 * 1000;
+
+    /**
+     * Number of flushes {@link #close()} waits for before giving up on the queued sessions.
+     */
+    private static final int CLOSE_FLUSHES = 3;
+
+    /**
+     * The thread flushing the queue, {@code null} if the runtime allows no background threads.
+     */
+    private volatile Thread timer;
+
+    /**
+     * @param memcache the memcache store in front of the Datastore.
+     * @param batchSize number of queued sessions triggering a Datastore write.
+     * @param writeDelay milliseconds after which a queued session triggers a Datastore write.
+     */
+    public DatastoreSessionStore(MemcacheSessionStore memcache, int batchSize, long writeDelay) {
+        this.memcache = memcache;
+        this.batchSize = batchSize;
+        this.writeDelay = writeDelay;
+        startTimer();
+    }
+
+    /**
+     * Starts a background thread flushing the queue every write delay, if the runtime allows it.
+     */
+    private void startTimer() {
+        Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(writeDelay);
+                        if (!queue.isEmpty()) flush();
+                    } catch (InterruptedException ix) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException rx) {
+                        LOGGER.error("Flushing sessions to the Datastore failed.", rx);
+                    }
+                }
+            }
+        };
+        try {
+            Thread thread = ApiProxy.getCurrentEnvironment() != null
+                    ? ThreadManager.createBackgroundThread(flusher) : new Thread(flusher);
+            thread.setName(getClass().getSimpleName() + " flush");
+            thread.setDaemon(true);
+            thread.start();
+            timer = thread;
+        } catch (RuntimeException rx) {
+            LOGGER.info("Background threads are not allowed, sessions are flushed to the Datastore by requests.");
+        } catch (LinkageError le) {
+            LOGGER.info("Background threads are not available, sessions are flushed to the Datastore by requests.");
+        }
+    }
+
+    /**
+     * Reads the session from memcache, falling back to the queue and the Datastore if memcache does not
+     * hold it in full.
+     */
+    @Override
+    protected SessionRecord doLoad(String sessionId, long knownVersion) {
+        flushIfDue();
+        SessionRecord record = memcache.load(sessionId, knownVersion);
+        if (record != null && (!record.hasData() || record.getVersion() != SessionRecord.NO_VERSION)) 
+            return record;
+        SessionRecord durable = queue.get(sessionId);
+        if (durable == null) {
+            try {
+                durable = fromEntity(datastore.get(key(sessionId)));
+            } catch (EntityNotFoundException enfe) {
+                if (record != null) {
+                    LOGGER.warn("Session {} was read partially from memcache and is not in the Datastore, "
+                            + "holding back its next Datastore write.", sessionId);
+                    partialReads.put(sessionId, System.currentTimeMillis());
+                }
+                return record;
+            }
+        }
+        record = durable;
+        if (record.isExpired()) {
+            LOGGER.debug("Session {} has expired, removing it.", sessionId);
+            remove(sessionId);
+            return null;
+        }
+        LOGGER.debug("Session {} restored from the Datastore, writing it back to memcache.", sessionId);
+        memcache.save(sessionId, record, record.getData().keySet(), Collections.<String>emptySet());
+        return record;
+    }
+
+    @Override
+    protected Future<?> doSave(String sessionId, SessionRecord record, Set<String> updated,
+            Set<String> removed) {
+        Future<?> result = memcache.save(sessionId, record, updated, removed);
+        enqueue(sessionId, record);
+        return result;
+    }
+
+    /**
+     * Writes the session to memcache on the condition of 
+     * {@link MemcacheSessionStore#saveIfCurrent(java.lang.String, long, com.javawords.faces.gae.SessionRecord, java.util.Set, java.util.Set)},
+     * queueing it for the Datastore once written.
+     */
+    @Override
+    public SessionRecord saveIfCurrent(String sessionId, long expectedVersion, SessionRecord record, 
+            Set<String> updated, Set<String> removed) {
+        long start = System.nanoTime();
+        SessionRecord current = memcache.saveIfCurrent(sessionId, expectedVersion, record, updated, removed);
+        if (current != null) return current;
+        enqueue(sessionId, record);
+        recordSave(start, record, updated);
+        return null;
+    }
+    
+    private void enqueue(String sessionId, SessionRecord record) {
+        Long partialRead = partialReads.remove(sessionId);
+        if (partialRead != null && System.currentTimeMillis() - partialRead < PARTIAL_READ_TIMEOUT) {
+            LOGGER.debug("Not queueing session {}, it was read partially.", sessionId);
+            return;
+        }
+        queue.put(sessionId, record);
+        queuedSince.compareAndSet(0, System.currentTimeMillis());
+        long since = queuedSince.get();
+        if (queue.size() >= batchSize || (since > 0 && System.currentTimeMillis() - since >= writeDelay)) flush();
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        memcache.remove(sessionId);
+        queue.remove(sessionId);
+        inFlight.remove(sessionId);
+        partialReads.remove(sessionId);
+        asyncDatastore.delete(key(sessionId));
+    }
+
+    /**
+     * Flushes the queue if its oldest entry has waited for the write delay.
+     */
+    private void flushIfDue() {
+        long since = queuedSince.get();
+        if (since > 0 && System.currentTimeMillis() - since >= writeDelay) flush();
+    }
+
+    /**
+     * Writes the queued sessions to the Datastore in a single asynchronous batch, except those with a
+     * write still in flight. Only one request at a time flushes, others keep queueing.
+     */
+    public void flush() {
+        if (!flushing.compareAndSet(false, true)) return;
+        try {
+            requeueFailedBatches();
+            queuedSince.set(0);
+            Map<String, SessionRecord> records = new HashMap<String, SessionRecord>();
+            List<Entity> entities = new ArrayList<Entity>();
+            for (Map.Entry<String, SessionRecord> e : queue.entrySet()) {
+                // Leave sessions still being written, or written again in the meantime, for the next batch.
+                if (!inFlight.containsKey(e.getKey()) && queue.remove(e.getKey(), e.getValue())) {
+                    records.put(e.getKey(), e.getValue());
+                    entities.add(toEntity(e.getKey(), e.getValue()));
+                }
+            }
+            if (!queue.isEmpty()) queuedSince.compareAndSet(0, System.currentTimeMillis());
+            if (entities.isEmpty()) return;
+            Batch batch;
+            try {
+                batch = new Batch(asyncDatastore.put(entities), records);
+            } catch (RuntimeException rx) {
+                // Nothing newer was sent meanwhile, the sessions were not in flight. Newer states are queued.
+                for (Map.Entry<String, SessionRecord> e : records.entrySet()) queue.putIfAbsent(e.getKey(), e.getValue());
+                queuedSince.compareAndSet(0, System.currentTimeMillis());
+                throw rx;
+            }
+            for (String sessionId : records.keySet()) inFlight.put(sessionId, batch);
+            batches.add(batch);
+            LOGGER.debug("Writing {} sessions to the Datastore.", entities.size());
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    /**
+     * Stops the timer and writes the queued sessions to the Datastore, waiting for the writes to
+     * complete. Sessions written afterwards are flushed by requests as if background threads were not
+     * allowed.
+     */
+    public void close() {
+        Thread thread = timer;
+        timer = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                // Let a flush in progress complete.
+                thread.join();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (int i = 0; i < CLOSE_FLUSHES; i++) {
+            flush();
+            if (queue.isEmpty() && batches.isEmpty()) return;
+            for (Batch batch : batches) {
+                try {
+                    batch.future.get();
+                } catch (ExecutionException ex) {
+                    // Queued again by the next flush.
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        LOGGER.warn("{} sessions could not be written to the Datastore on close.", queue.size() + inFlight.size());
+    }
+
+    /**
+     * Checks the batches that are done, queueing the sessions of the failed ones again unless a newer
+     * state is queued or the session was removed, and forgets the partial reads too old to hold back a
+     * write.
+     */
+    private void requeueFailedBatches() {
+        for (Batch batch : batches) {
+            if (!batch.future.isDone() || !batches.remove(batch)) continue;
+            boolean failed = false;
+            try {
+                batch.future.get();
+            } catch (ExecutionException ex) {
+                LOGGER.error("Writing " + batch.records.size() + " sessions to the Datastore failed, queueing "
+                        + "them again.", ex.getCause());
+                failed = true;
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            for (Map.Entry<String, SessionRecord> e : batch.records.entrySet()) {
+                if (inFlight.remove(e.getKey(), batch) && failed) queue.putIfAbsent(e.getKey(), e.getValue());
+            }
+            if (failed && !queue.isEmpty()) queuedSince.compareAndSet(0, System.currentTimeMillis());
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> e : partialReads.entrySet()) {
+            if (now - e.getValue() >= PARTIAL_READ_TIMEOUT) partialReads.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * A Datastore write in flight and the records it holds.
+     */
+    private static final class Batch {
+
+        private final Future<List<Key>> future;
+
+        private final Map<String, SessionRecord> records;
+
+        Batch(Future<List<Key>> future, Map<String, SessionRecord> records) {
+            this.future = future;
+            this.records = records;
+        }
+
+    }
+
+    private static Key key(String sessionId) {
+        return KeyFactory.createKey(KIND, sessionId);
+    }
+
+    private static Entity toEntity(String sessionId, SessionRecord record) {
+        Entity entity = new Entity(key(sessionId));
+        entity.setUnindexedProperty(VERSION_PROPERTY, record.getVersion());
+        if (record.getExpires() > 0) entity.setUnindexedProperty(EXPIRES_PROPERTY, record.getExpires());
+        for (Map.Entry<String, byte[]> e : record.getData().entrySet()) {
+            entity.setUnindexedProperty(DATA_PREFIX + e.getKey(), new Blob(e.getValue()));
+            entity.setUnindexedProperty(VERSION_PREFIX + e.getKey(), record.getVersions().get(e.getKey()));
+        }
+        return entity;
+    }
+
+    private static SessionRecord fromEntity(Entity entity) {
+        Map<String, byte[]> data = new HashMap<String, byte[]>();
+        Map<String, Long> versions = new HashMap<String, Long>();
+        for (Map.Entry<String, Object> e : entity.getProperties().entrySet()) {
+            String property = e.getKey();
+            if (property.startsWith(DATA_PREFIX))
+                data.put(property.substring(DATA_PREFIX.length()), ((Blob) e.getValue()).getBytes());
+            else if (property.startsWith(VERSION_PREFIX))
+                versions.put(property.substring(VERSION_PREFIX.length()), (Long) e.getValue());
+        }
+        Long expires = (Long) entity.getProperty(EXPIRES_PROPERTY);
+        return new SessionRecord(data, versions, (Long) entity.getProperty(VERSION_PROPERTY), 
+                expires == null ? 0 : expires);
+    }
+
+}
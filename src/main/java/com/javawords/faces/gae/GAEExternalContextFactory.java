@@ -1,13 +1,14 @@
 package com.javawords.faces.gae;
 
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.javawords.faces.serialization.SessionCodec;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import javax.faces.FacesException;
 import javax.faces.FactoryFinder;
 import javax.faces.context.ExternalContext;
@@ -33,7 +34,40 @@ public class GAEExternalContextFactory extends ExternalContextFactory {
     
     private static final String CTX_REQUEST_PARAM = GAEExternalContext.class.getName() + '.' + "context";
     
+    /**
+     * Request attribute making the request create its session only when an attribute is put, as
+     * <code>SESSION_CREATE_ON_WRITE</code> does for all requests. Set by the output cache of
+     * {@link com.javawords.faces.mapping.MappingFilter}, so that rendering a cached view reading the
+     * session map does not create a session and keep the output from being shared.
+     */
+    public static final String CREATE_ON_WRITE_ATTRIBUTE = "com.javawords.faces.gae.createOnWrite";
+    
     private final ExternalContextFactory wrappedFactory;
+    
+    /**
+     * Session layer configuration, read on the first request since context parameters are not
+     * available earlier.
+     */
+    private volatile GAESessionConfig config;
+    
+    /**
+     * Sessions cached in-process, shared by all the requests served by this instance.
+     */
+    private SessionCache sessionCache;
+    
+    private SessionStore sessionStore;
+    
+    private SessionCodec sessionCodec;
+    
+    /**
+     * Restores in flight, shared by concurrent requests of the same session.
+     */
+    private final SingleFlight<String, SessionSnapshot> restores = new SingleFlight<String, SessionSnapshot>() {
+        @Override
+        protected void joined(String sessionId) {
+            SessionStats.getInstance().coalescedRestore();
+        }
+    };
 
     public GAEExternalContextFactory(ExternalContextFactory wrappedFactory) {
         
@@ -62,14 +96,38 @@ public class GAEExternalContextFactory extends ExternalContextFactory {
             throws FacesException {
         
         ExternalContext wrappedContext = wrappedFactory.getExternalContext(context, request, response);
-        ExternalContext result = new GAEExternalContext(wrappedContext);
+        if (config == null) init(wrappedContext);
+        ExternalContext result = new GAEExternalContext(wrappedContext, config, sessionCache, sessionStore, 
+                sessionCodec, restores);
         // Add the result object to ensure that GAEPhaseListener will be able to callback the
         // correct object.
         result.getRequestMap().put(CTX_REQUEST_PARAM, result);
         return result;
         
     }
-
+    
+    private synchronized void init(ExternalContext context) {
+        if (config != null) return;
+        GAESessionConfig c = new GAESessionConfig(context);
+        sessionCache = c.createSessionCache();
+        sessionCodec = c.createSessionCodec();
+        sessionStore = c.createSessionStore(sessionCodec);
+        SessionStats.getInstance().setCodec(sessionCodec);
+        SessionStats.getInstance().setStore(sessionStore);
+        context.getApplicationMap().put(GAESessionListener.STORE_ATTRIBUTE, sessionStore);
+        LOGGER.info("Session store: {}", sessionStore.getClass().getName());
+        if (sessionStore instanceof DatastoreSessionStore 
+                && !context.getApplicationMap().containsKey(GAESessionListener.REGISTERED_ATTRIBUTE)) {
+            LOGGER.warn("{} is not registered, sessions queued for the Datastore are lost when the "
+                    + "application stops.", GAESessionListener.class.getSimpleName());
+        }
+        if (c.isOptimistic() && !(sessionStore instanceof ConditionalSessionStore)) {
+            LOGGER.warn("Session store {} does not support conditional writes, optimistic persist is disabled.",
+                    sessionStore.getClass().getName());
+        }
+        // Publish the configuration last, the volatile write makes the others visible along with it.
+        config = c;
+    }
     
     private static class GAEPhaseListener implements PhaseListener {
         
@@ -79,9 +137,7 @@ public class GAEExternalContextFactory extends ExternalContextFactory {
         
         @Override
         public void beforePhase(PhaseEvent event) {
-            if (!event.getPhaseId().equals(PhaseId.RESTORE_VIEW)) return;
-            GAEExternalContext target = getContext();
-            if (target != null) target.restore();
+            // Nothing to do, the session map is restored on first access.
         }
         
         @Override
@@ -113,22 +169,46 @@ public class GAEExternalContextFactory extends ExternalContextFactory {
         
         private final ExternalContext wrappedContext;
         
-        private static final String NAMESPACE_PREFIX = GAEExternalContext.class.getPackage().getName();
+        private final GAESessionConfig config;
+        
+        private final SessionCache sessionCache;
         
-        private static final String SESSION_MAP_SUFFIX = "SessionMap";
+        private final SessionStore sessionStore;
         
-        private static final Map<String, Map<String, Object>> SESSION_MAPS = 
-                new HashMap<String, Map<String, Object>>();
+        private final SessionCodec sessionCodec;
         
-        private final MemcacheService memcache = 
-                MemcacheServiceFactory.getMemcacheService(NAMESPACE_PREFIX + '.' + SESSION_MAP_SUFFIX);
+        private final SingleFlight<String, SessionSnapshot> restores;
         
-        public GAEExternalContext(ExternalContext wrappedContext) {
+        /**
+         * The session map of the current request, restored on first access.
+         */
+        private final LazySessionMap sessionMap = new LazySessionMap() {
+            @Override
+            protected SessionMap load() {
+                return restore();
+            }
+            
+            @Override
+            protected SessionMap create() {
+                LOGGER.debug("Creating a session for the first session attribute.");
+                getSessionId(true);
+                return new SessionMap();
+            }
+        };
+        
+        public GAEExternalContext(ExternalContext wrappedContext, GAESessionConfig config, 
+                SessionCache sessionCache, SessionStore sessionStore, SessionCodec sessionCodec, 
+                SingleFlight<String, SessionSnapshot> restores) {
             
             LOGGER.info("{} created, wrapped ExternalContext class is: {}", this.getClass().getSimpleName(),
                     wrappedContext.getClass().getName());
             
             this.wrappedContext = wrappedContext;
+            this.config = config;
+            this.sessionCache = sessionCache;
+            this.sessionStore = sessionStore;
+            this.sessionCodec = sessionCodec;
+            this.restores = restores;
         }        
         
 
@@ -144,37 +224,201 @@ public class GAEExternalContextFactory extends ExternalContextFactory {
 
         @Override
         public Map<String, Object> getSessionMap() {
-            String sessionId = getSessionId();
-            Map result = SESSION_MAPS.get(sessionId);
-            if (result == null) {
-                result = new HashMap<String, Object>();
-                SESSION_MAPS.put(sessionId, result);
+            return sessionMap;
+        }
+        
+        private String getSessionId(boolean create) {            
+            HttpSession session = (HttpSession) wrappedContext.getSession(create);
+            return session == null ? null : session.getId();
+        }
+        
+        @Override
+        public void invalidateSession() {
+            HttpSession session = (HttpSession) wrappedContext.getSession(false);
+            if (session != null) {
+                sessionStore.remove(session.getId());
+                sessionCache.remove(session.getId());
+                restores.forget(session.getId());
             }
-            return result;
+            sessionMap.reset();
+            super.invalidateSession();
         }
         
-        private String getSessionId() {            
-            HttpSession session = (HttpSession) wrappedContext.getSession(true);
-            return session.getId();
+        /**
+         * Restores the session map from the session store. Immutable attributes unchanged since the
+         * session was cached by this instance keep their cached instance instead of being deserialized
+         * again, mutable ones are deserialized by every request on first access. With
+         * version checking enabled, the cached session is reused as a whole when the store reports it is
+         * still at the cached version, skipping the attribute reads.
+         * <p>Concurrent restores of the same session share a single load and snapshot. Each request gets
+         * its own map over the shared snapshot, so changes made by one request are not seen by the
+         * others until persisted.</p>
+         * <p>Called by the session map the first time it is accessed during a request.</p>
+         * @return the restored session map, or {@code null} if sessions are created on write and the
+         * request has none.
+         * @see #CREATE_ON_WRITE_ATTRIBUTE
+         */
+        protected SessionMap restore() {
+            LOGGER.debug("restore() called.");
+            boolean createOnWrite = config.isCreateOnWrite() 
+                    || getRequestMap().containsKey(CREATE_ON_WRITE_ATTRIBUTE);
+            final String sessionId = getSessionId(!createOnWrite);
+            if (sessionId == null) {
+                LOGGER.debug("No session, serving an empty session map until an attribute is put.");
+                return null;
+            }
+            // Make sure an asynchronous write of the session by a previous request has landed.
+            if (config.isAsyncPersist()) PendingWrites.await(sessionId, config.getAsyncTimeout());
+            SessionSnapshot snapshot = restores.execute(sessionId, new Callable<SessionSnapshot>() {
+                @Override
+                public SessionSnapshot call() {
+                    return load(sessionId);
+                }
+            });
+            return snapshot == null ? new SessionMap() : new SessionMap(snapshot, sessionCodec);
         }
         
-        protected void restore() {
-            LOGGER.info("********* restore() called!");
-            String sessionId = getSessionId();            
-            Map<String, Object> map = (Map<String, Object>) memcache.get(sessionId);
-            SESSION_MAPS.put(sessionId, map);
+        /**
+         * Loads the snapshot of a session, updating the session cache.
+         * @return the snapshot, or {@code null} if the session is not stored.
+         */
+        private SessionSnapshot load(String sessionId) {
+            SessionSnapshot cached = sessionCache.get(sessionId);
+            long knownVersion = (config.isVersionCheck() && cached != null) 
+                    ? cached.getVersion() : SessionRecord.NO_VERSION;
+            SessionRecord record = sessionStore.load(sessionId, knownVersion);
+            if (record == null) {
+                sessionCache.remove(sessionId);
+                return null;
+            }
+            if (!record.hasData()) {
+                SessionStats.getInstance().versionHit();
+                LOGGER.debug("Session {} is current at version {}, reusing cached copy.", sessionId,
+                        knownVersion);
+                return cached;
+            }
+            if (config.isVersionCheck()) SessionStats.getInstance().versionMiss();
+            SessionSnapshot snapshot = SessionSnapshot.restore(record, cached, sessionCodec);
+            sessionCache.put(sessionId, snapshot);
+            return snapshot;
         }
         
+        /**
+         * Writes back the attributes changed during the request, under a new version of the session.
+         * Nothing is written if the session map was not accessed or not changed. With asynchronous
+         * persist enabled, the write is started and waited for at the end of the request.
+         */
         protected void persist() {
-            LOGGER.info("********* persist() called!");            
-            String sessionId = getSessionId(); 
-            Map<String, Object> map = SESSION_MAPS.get(sessionId);
-            memcache.put(sessionId, map);
+            LOGGER.debug("persist() called.");
+            SessionMap map = sessionMap.getLoaded();
+            if (map == null) {
+                LOGGER.debug("Session map was not accessed, skipping persist.");
+                return;
+            }
+            String sessionId = getSessionId(true);
+            SessionDelta delta = map.getDelta(sessionCodec);
+            if (delta.isEmpty()) {
+                LOGGER.debug("Session {} was not changed, skipping persist.", sessionId);
+                return;
+            }
+            
+            reportSizes(sessionId, delta);
+            long baseVersion = map.getVersion();
+            Map<String, Long> baseVersions = map.getVersions();
+            long version = SessionRecord.nextVersion();
+            map.commit(delta, version);
+            SessionSnapshot snapshot = map.toSnapshot();
+            SessionRecord record = snapshot.toRecord().expiringAt(getExpires());
+            if (config.isOptimistic() && sessionStore instanceof ConditionalSessionStore) {
+                if (!saveIfCurrent(sessionId, baseVersion, baseVersions, record, delta)) {
+                    // The session now holds attributes of another request, not deserialized here.
+                    snapshot = null;
+                }
+            } else {
+                Future<?> write = sessionStore.save(sessionId, record, delta.getUpdated().keySet(), 
+                        delta.getRemoved());
+                if (write != null) {
+                    getRequestMap().put(GAESessionListener.PENDING_WRITE_ATTRIBUTE,
+                            PendingWrites.start(sessionId, Collections.singletonList(write), config.getAsyncTimeout()));
+                }
+            }
+            if (snapshot != null) sessionCache.put(sessionId, snapshot);
+            else sessionCache.remove(sessionId);
+            // Restores already in flight would hand out the session as it was before this write.
+            restores.forget(sessionId);
+            LOGGER.debug("Persisted session {}: {} attributes updated ({} bytes), {} removed.", new Object[] {
+                sessionId, delta.getUpdated().size(), delta.getSize(), delta.getRemoved().size()});
         }
         
+        /**
+         * Returns the absolute expiration of the session of the request, zero if there is none.
+         */
+        private long getExpires() {
+            HttpSession session = (HttpSession) wrappedContext.getSession(false);
+            return (session == null || config.getAbsoluteTimeout() == 0) 
+                    ? 0 : session.getCreationTime() + config.getAbsoluteTimeout();
+        }
+        
+        /**
+         * Writes the session only if no other request wrote it since it was restored. On a conflict the
+         * changes of this request are merged into the session as written by the other request, and the
+         * write is retried up to the configured number of times before it is written unconditionally.
+         * @return true if the session was written as it is held by this request, false if it was merged.
+         */
+        private boolean saveIfCurrent(String sessionId, long baseVersion, Map<String, Long> baseVersions, 
+                SessionRecord record, SessionDelta delta) {
+            ConditionalSessionStore store = (ConditionalSessionStore) sessionStore;
+            Set<String> updated = delta.getUpdated().keySet();
+            SessionRecord current = store.saveIfCurrent(sessionId, baseVersion, record, updated, delta.getRemoved());
+            if (current == null) return true;
+            for (int retry = 0; current != null; retry++) {
+                int conflicts = delta.countConflicts(baseVersions, current);
+                SessionStats.getInstance().writeConflict(conflicts);
+                LOGGER.debug("Session {} was written concurrently, merging ({} conflicting attributes).", 
+                        sessionId, conflicts);
+                record = delta.mergeInto(current, record.getVersion()).expiringAt(record.getExpires());
+                if (retry == config.getOptimisticRetries()) {
+                    SessionStats.getInstance().unresolvedConflict();
+                    LOGGER.warn("Session {} kept being written concurrently, writing it unconditionally.", 
+                            sessionId);
+                    store.save(sessionId, record, updated, delta.getRemoved());
+                    break;
+                }
+                baseVersions = current.getVersions();
+                current = store.saveIfCurrent(sessionId, current.getVersion(), record, updated, delta.getRemoved());
+            }
+            return false;
+        }
+        
+        /**
+         * Logs the encoded size of every attribute written, warning about those above the configured
+         * size.
+         */
+        private void reportSizes(String sessionId, SessionDelta delta) {
+            int warning = config.getAttributeSizeWarning();
+            for (Map.Entry<String, byte[]> e : delta.getUpdated().entrySet()) {
+                int size = e.getValue().length;
+                if (warning > 0 && size > warning) {
+                    SessionStats.getInstance().largeAttribute();
+                    LOGGER.warn("Session {} attribute '{}' is {} bytes.", new Object[] {sessionId, e.getKey(), size});
+                } else {
+                    LOGGER.debug("Session {} attribute '{}' is {} bytes.", new Object[] {sessionId, e.getKey(), size});
+                }
+            }
+        }
+        
+        /**
+         * Releases the session map of the request. A pending asynchronous write is waited for here,
+         * unless {@link GAESessionListener} is registered to wait for it after the response is flushed.
+         */
         protected void release() {            
-            LOGGER.info("********* release() called!");
-            SESSION_MAPS.remove(getSessionId());
+            LOGGER.debug("release() called.");
+            sessionMap.reset();
+            Object write = getRequestMap().get(GAESessionListener.PENDING_WRITE_ATTRIBUTE);
+            if (write instanceof PendingWrites.Write 
+                    && !getApplicationMap().containsKey(GAESessionListener.REGISTERED_ATTRIBUTE)) {
+                ((PendingWrites.Write) write).await();
+            }
         }
     }
     
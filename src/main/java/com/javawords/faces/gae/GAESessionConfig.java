@@ -0,0 +1,246 @@
+package com.javawords.faces.gae;
+
+import com.javawords.faces.serialization.SessionCodec;
+import java.lang.reflect.InvocationTargetException;
+import javax.faces.FacesException;
+import javax.faces.context.ExternalContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Configuration of the GAE session layer, read from the context parameters of the web application.
+ * All parameter names are prefixed with <code>com.javawords.faces.gae.</code>:
+ * <ul>
+ *  <li><code>SESSION_CACHE_MAX_ENTRIES:</code> Maximum number of sessions kept in the in-process
+ * session cache. Defaults to 1000.
+ *  </li>
+ *  <li><code>SESSION_CACHE_MAX_BYTES:</code> Maximum size in bytes of the sessions kept in the
+ * in-process session cache. Defaults to 32MB.
+ *  </li>
+ *  <li><code>SESSION_CACHE_IDLE_TIMEOUT:</code> Seconds after which a cached session not accessed is
+ * dropped from the in-process session cache, zero to disable. Defaults to 1800.
+ *  </li>
+ *  <li><code>SESSION_CACHE_CONCURRENCY:</code> Expected number of concurrent request threads, used to
+ * split the in-process session cache in independently locked segments. Defaults to 16.
+ *  </li>
+ *  <li><code>SESSION_VERSION_CHECK:</code> If <code>true</code>, a session cached by this instance is
+ * reused as long as the version stamp stored in memcache has not changed, so that restoring it only
+ * reads the session index. Defaults to <code>false</code>.
+ *  </li>
+ *  <li><code>SESSION_ASYNC_PERSIST:</code> If <code>true</code>, session changes are written to memcache
+ * asynchronously once rendering is complete, and the request only waits for the write at its very end.
+ * Register {@link GAESessionListener} in web.xml to wait after the response has been flushed, otherwise
+ * the write is waited for as soon as the lifecycle completes. Defaults to <code>false</code>.
+ *  </li>
+ *  <li><code>SESSION_ASYNC_TIMEOUT:</code> Maximum milliseconds to wait for an asynchronous session
+ * write, either at the end of the request or when the next request restores the session. Defaults to 
+ * 2000.
+ *  </li>
+ *  <li><code>SESSION_STORE:</code> The {@link SessionStore} keeping the sessions. One of
+ * <code>memcache</code> for {@link MemcacheSessionStore}, <code>datastore</code> for
+ * {@link DatastoreSessionStore}, <code>memory</code> for {@link InMemorySessionStore}, or the class name
+ * of a custom store having a public no-argument constructor. Defaults to <code>memcache</code>.
+ *  </li>
+ *  <li><code>SESSION_DATASTORE_BATCH_SIZE:</code> Number of changed sessions written to the Datastore in a
+ * single batch by the <code>datastore</code> store. Defaults to 20.
+ *  </li>
+ *  <li><code>SESSION_DATASTORE_WRITE_DELAY:</code> Maximum milliseconds a changed session waits to be
+ * written to the Datastore by the <code>datastore</code> store. Defaults to 5000.
+ *  </li>
+ *  <li><code>SESSION_COMPRESSION_THRESHOLD:</code> Encoded size in bytes above which session attributes
+ * are compressed, negative to never compress. Defaults to 4096.
+ *  </li>
+ *  <li><code>SESSION_ATTRIBUTE_SIZE_WARNING:</code> Encoded size in bytes above which writing a session
+ * attribute is logged as a warning, zero to disable. Defaults to 102400.
+ *  </li>
+ *  <li><code>SESSION_OPTIMISTIC:</code> If <code>true</code>, a session is written only if no other
+ * request wrote it since it was restored. Otherwise the changes of the request are merged, attribute by
+ * attribute, into the session as written by the other request and the write is retried. Requires a
+ * {@link ConditionalSessionStore}, and makes session writes synchronous. Defaults to <code>false</code>.
+ *  </li>
+ *  <li><code>SESSION_OPTIMISTIC_RETRIES:</code> Number of merge and retry rounds of an optimistic write,
+ * after which the merged session is written unconditionally. Defaults to 3.
+ *  </li>
+ *  <li><code>SESSION_CREATE_ON_WRITE:</code> If <code>true</code>, requests without a session are served
+ * an empty session map and the session is only created when an attribute is put, so that anonymous
+ * requests reading the session map create neither an HTTP session nor session entries in the store.
+ * Defaults to <code>false</code>.
+ *  </li>
+ *  <li><code>SESSION_IDLE_TIMEOUT:</code> Seconds after which a session neither read nor written expires
+ * from memcache, zero for never. Defaults to 0.
+ *  </li>
+ *  <li><code>SESSION_ABSOLUTE_TIMEOUT:</code> Seconds after its creation a session expires regardless of
+ * activity, zero for never. Defaults to 0.
+ *  </li>
+ *  <li><code>SESSION_TOUCH_INTERVAL:</code> Minimum seconds between two reads of a session extending its
+ * idle timeout, each one rewriting the small session index. Defaults to 60.
+ *  </li>
+ * </ul>
+ */
+class GAESessionConfig {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(GAESessionConfig.class);
+    
+    static final String PARAM_PREFIX = GAESessionConfig.class.getPackage().getName() + '.';
+    
+    static final String CACHE_MAX_ENTRIES = PARAM_PREFIX + "SESSION_CACHE_MAX_ENTRIES";
+    static final String CACHE_MAX_BYTES = PARAM_PREFIX + "SESSION_CACHE_MAX_BYTES";
+    static final String CACHE_IDLE_TIMEOUT = PARAM_PREFIX + "SESSION_CACHE_IDLE_TIMEOUT";
+    static final String CACHE_CONCURRENCY = PARAM_PREFIX + "SESSION_CACHE_CONCURRENCY";
+    static final String VERSION_CHECK = PARAM_PREFIX + "SESSION_VERSION_CHECK";
+    static final String ASYNC_PERSIST = PARAM_PREFIX + "SESSION_ASYNC_PERSIST";
+    static final String ASYNC_TIMEOUT = PARAM_PREFIX + "SESSION_ASYNC_TIMEOUT";
+    static final String STORE = PARAM_PREFIX + "SESSION_STORE";
+    static final String DATASTORE_BATCH_SIZE = PARAM_PREFIX + "SESSION_DATASTORE_BATCH_SIZE";
+    static final String DATASTORE_WRITE_DELAY = PARAM_PREFIX + "SESSION_DATASTORE_WRITE_DELAY";
+    static final String COMPRESSION_THRESHOLD = PARAM_PREFIX + "SESSION_COMPRESSION_THRESHOLD";
+    static final String ATTRIBUTE_SIZE_WARNING = PARAM_PREFIX + "SESSION_ATTRIBUTE_SIZE_WARNING";
+    static final String OPTIMISTIC = PARAM_PREFIX + "SESSION_OPTIMISTIC";
+    static final String OPTIMISTIC_RETRIES = PARAM_PREFIX + "SESSION_OPTIMISTIC_RETRIES";
+    static final String CREATE_ON_WRITE = PARAM_PREFIX + "SESSION_CREATE_ON_WRITE";
+    static final String IDLE_TIMEOUT = PARAM_PREFIX + "SESSION_IDLE_TIMEOUT";
+    static final String ABSOLUTE_TIMEOUT = PARAM_PREFIX + "SESSION_ABSOLUTE_TIMEOUT";
+    static final String TOUCH_INTERVAL = PARAM_PREFIX + "SESSION_TOUCH_INTERVAL";
+    
+    private final ExternalContext context;
+    
+    private final int cacheMaxEntries;
+    private final long cacheMaxBytes;
+    private final long cacheIdleTimeout;
+    private final int cacheConcurrency;
+    private final boolean versionCheck;
+    private final boolean asyncPersist;
+    private final long asyncTimeout;
+    private final String store;
+    private final int datastoreBatchSize;
+    private final long datastoreWriteDelay;
+    private final int compressionThreshold;
+    private final int attributeSizeWarning;
+    private final boolean optimistic;
+    private final int optimisticRetries;
+    private final boolean createOnWrite;
+    private final long idleTimeout;
+    private final long absoluteTimeout;
+    private final long touchInterval;
+    
+    GAESessionConfig(ExternalContext context) {
+        this.context = context;
+        cacheMaxEntries = (int) getLong(CACHE_MAX_ENTRIES, 1000);
+        cacheMaxBytes = getLong(CACHE_MAX_BYTES, 32 * 1024 * 1024);
+        cacheIdleTimeout = getLong(CACHE_IDLE_TIMEOUT, 1800) * 1000;
+        cacheConcurrency = (int) getLong(CACHE_CONCURRENCY, 16);
+        versionCheck = getBoolean(VERSION_CHECK, false);
+        asyncPersist = getBoolean(ASYNC_PERSIST, false);
+        asyncTimeout = getLong(ASYNC_TIMEOUT, 2000);
+        store = getString(STORE, "memcache");
+        datastoreBatchSize = (int) getLong(DATASTORE_BATCH_SIZE, 20);
+        datastoreWriteDelay = getLong(DATASTORE_WRITE_DELAY, 5000);
+        compressionThreshold = (int) getLong(COMPRESSION_THRESHOLD, 4096);
+        attributeSizeWarning = (int) getLong(ATTRIBUTE_SIZE_WARNING, 100 * 1024);
+        optimistic = getBoolean(OPTIMISTIC, false);
+        optimisticRetries = (int) getLong(OPTIMISTIC_RETRIES, 3);
+        createOnWrite = getBoolean(CREATE_ON_WRITE, false);
+        idleTimeout = getLong(IDLE_TIMEOUT, 0) * 1000;
+        absoluteTimeout = getLong(ABSOLUTE_TIMEOUT, 0) * 1000;
+        touchInterval = getLong(TOUCH_INTERVAL, 60) * 1000;
+    }
+    
+    SessionCache createSessionCache() {
+        return new SessionCache(cacheMaxEntries, cacheMaxBytes, cacheIdleTimeout, cacheConcurrency);
+    }
+
+    /**
+     * @param codec the codec of the session layer, converting sessions stored by earlier versions.
+     */
+    SessionStore createSessionStore(SessionCodec codec) {
+        if ("memcache".equals(store)) 
+            return new MemcacheSessionStore(asyncPersist, idleTimeout, touchInterval, codec);
+        if ("datastore".equals(store)) 
+            return new DatastoreSessionStore(new MemcacheSessionStore(asyncPersist, idleTimeout, touchInterval, 
+                    codec), datastoreBatchSize, datastoreWriteDelay);
+        if ("memory".equals(store)) return new InMemorySessionStore();
+        try {
+            Class<? extends SessionStore> c = Class.forName(store, true, 
+                    Thread.currentThread().getContextClassLoader()).asSubclass(SessionStore.class);
+            return c.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException ite) {
+            throw new FacesException("Cannot create session store " + store, ite.getCause());
+        } catch (ClassNotFoundException cnfe) {
+            throw new FacesException("Cannot create session store " + store, cnfe);
+        } catch (NoSuchMethodException nsme) {
+            throw new FacesException("Session store " + store + " has no no-argument constructor", nsme);
+        } catch (InstantiationException ie) {
+            throw new FacesException("Cannot create session store " + store, ie);
+        } catch (IllegalAccessException iae) {
+            throw new FacesException("Cannot create session store " + store, iae);
+        } catch (ClassCastException cce) {
+            throw new FacesException(store + " is not a " + SessionStore.class.getName(), cce);
+        }
+    }
+
+    SessionCodec createSessionCodec() {
+        return new SessionCodec(compressionThreshold);
+    }
+
+    boolean isVersionCheck() {
+        return versionCheck;
+    }
+
+    boolean isAsyncPersist() {
+        return asyncPersist;
+    }
+
+    long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    int getAttributeSizeWarning() {
+        return attributeSizeWarning;
+    }
+
+    boolean isOptimistic() {
+        return optimistic;
+    }
+
+    int getOptimisticRetries() {
+        return optimisticRetries;
+    }
+
+    boolean isCreateOnWrite() {
+        return createOnWrite;
+    }
+
+    long getAbsoluteTimeout() {
+        return absoluteTimeout;
+    }
+
+    private String getString(String name, String defaultValue) {
+        String value = context.getInitParameter(name);
+        String result = (value == null || value.trim().length() == 0) ? defaultValue : value.trim();
+        LOGGER.info("{} = {}", name, result);
+        return result;
+    }
+
+    private boolean getBoolean(String name, boolean defaultValue) {
+        String value = context.getInitParameter(name);
+        boolean result = (value == null || value.trim().length() == 0) 
+                ? defaultValue : Boolean.parseBoolean(value.trim());
+        LOGGER.info("{} = {}", name, result);
+        return result;
+    }
+
+    private long getLong(String name, long defaultValue) {
+        String value = context.getInitParameter(name);
+        long result = defaultValue;
+        if (value != null && value.trim().length() > 0) {
+            try {
+                result = Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                LOGGER.warn("Invalid value '{}' for parameter {}, using the default.", value, name);
+            }
+        }
+        LOGGER.info("{} = {}", name, result);
+        return result;
+    }
+    
+}
@@ -0,0 +1,67 @@
+package com.javawords.faces.gae;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for the asynchronous session write of a request once the request has been served, so that the
+ * write overlaps with flushing the response, and closes the {@link DatastoreSessionStore} when the
+ * application stops so that its queued sessions are written. Needed when asynchronous persist is enabled
+ * or sessions are stored in the Datastore, and has to be declared in web.xml:
+ * <pre>
+ * &lt;listener&gt;
+ *     &lt;listener-class&gt;com.javawords.faces.gae.GAESessionListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ */
+public class GAESessionListener implements ServletContextListener, ServletRequestListener {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(GAESessionListener.class);
+    
+    /**
+     * Application attribute telling the session layer that this listener is registered.
+     */
+    static final String REGISTERED_ATTRIBUTE = GAESessionListener.class.getName() + ".registered";
+    
+    /**
+     * Request attribute holding the pending session write of the request.
+     */
+    static final String PENDING_WRITE_ATTRIBUTE = GAESessionListener.class.getName() + ".pendingWrite";
+    
+    /**
+     * Application attribute holding the session store of the application.
+     */
+    static final String STORE_ATTRIBUTE = GAESessionListener.class.getName() + ".store";
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        sce.getServletContext().setAttribute(REGISTERED_ATTRIBUTE, Boolean.TRUE);
+        LOGGER.info("{} registered, asynchronous session writes will be awaited after the response.",
+                getClass().getSimpleName());
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        sce.getServletContext().removeAttribute(REGISTERED_ATTRIBUTE);
+        Object store = sce.getServletContext().getAttribute(STORE_ATTRIBUTE);
+        if (store instanceof DatastoreSessionStore) {
+            LOGGER.info("Writing the queued sessions to the Datastore.");
+            ((DatastoreSessionStore) store).close();
+        }
+    }
+
+    @Override
+    public void requestInitialized(ServletRequestEvent sre) {
+    }
+
+    @Override
+    public void requestDestroyed(ServletRequestEvent sre) {
+        Object write = sre.getServletRequest().getAttribute(PENDING_WRITE_ATTRIBUTE);
+        if (write instanceof PendingWrites.Write) ((PendingWrites.Write) write).await();
+    }
+    
+}
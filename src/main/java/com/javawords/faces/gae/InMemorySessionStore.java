@@ -0,0 +1,56 @@
+package com.javawords.faces.gae;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+/**
+ * A session store keeping sessions in the memory of the running process. Sessions are neither shared
+ * across instances nor bounded, so this store is meant for tests, local development and load runs that
+ * have to leave memcache out of the picture.
+ */
+public class InMemorySessionStore extends AbstractSessionStore implements ConditionalSessionStore {
+    
+    private final ConcurrentMap<String, SessionRecord> sessions = new ConcurrentHashMap<String, SessionRecord>();
+
+    @Override
+    protected SessionRecord doLoad(String sessionId, long knownVersion) {
+        SessionRecord record = sessions.get(sessionId);
+        if (record != null && record.isExpired()) {
+            sessions.remove(sessionId, record);
+            return null;
+        }
+        if (record != null && knownVersion != SessionRecord.NO_VERSION && record.getVersion() == knownVersion)
+            return SessionRecord.unchanged(knownVersion);
+        return record;
+    }
+
+    @Override
+    protected Future<?> doSave(String sessionId, SessionRecord record, Set<String> updated, 
+            Set<String> removed) {
+        sessions.put(sessionId, record);
+        return null;
+    }
+
+    @Override
+    public SessionRecord saveIfCurrent(String sessionId, long expectedVersion, SessionRecord record, 
+            Set<String> updated, Set<String> removed) {
+        long start = System.nanoTime();
+        SessionRecord current = sessions.get(sessionId);
+        boolean written = current == null ? sessions.putIfAbsent(sessionId, record) == null
+                : current.getVersion() == expectedVersion && sessions.replace(sessionId, current, record);
+        if (!written) {
+            current = sessions.get(sessionId);
+            return current != null ? current : SessionRecord.EMPTY;
+        }
+        recordSave(start, record, updated);
+        return null;
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        sessions.remove(sessionId);
+    }
+    
+}
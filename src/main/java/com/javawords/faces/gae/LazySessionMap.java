@@ -0,0 +1,133 @@
+package com.javawords.faces.gae;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A session map deferring the restore of the session until it is first read or written, so that
+ * requests never touching the session do not pay for restoring and persisting it.
+ *
+ * <p>If {@link #load()} finds no session to restore, reads are served from an empty map and the session
+ * map is only created by {@link #create()} when an attribute is put.</p>
+ */
+abstract class LazySessionMap extends AbstractMap<String, Object> {
+    
+    private SessionMap map;
+    
+    private boolean detached;
+    
+    /**
+     * Restores the session map, called on the first access.
+     * @return the restored map, or {@code null} if there is no session.
+     */
+    protected abstract SessionMap load();
+    
+    /**
+     * Creates the session map of a new session, called on the first write when {@link #load()} found no
+     * session.
+     */
+    protected abstract SessionMap create();
+    
+    /**
+     * Returns true if the session map has been restored.
+     */
+    boolean isLoaded() {
+        return map != null;
+    }
+    
+    /**
+     * Returns the restored session map, or {@code null} if it was never accessed.
+     */
+    SessionMap getLoaded() {
+        return map;
+    }
+    
+    /**
+     * Discards the restored session map, the next access will restore it again.
+     */
+    void reset() {
+        map = null;
+        detached = false;
+    }
+    
+    private Map<String, Object> map() {
+        if (map == null && !detached) {
+            map = load();
+            detached = map == null;
+        }
+        return map != null ? map : Collections.<String, Object>emptyMap();
+    }
+    
+    private SessionMap writableMap() {
+        map();
+        if (map == null) {
+            map = create();
+            detached = false;
+        }
+        return map;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return map().entrySet();
+    }
+
+    @Override
+    public int size() {
+        return map().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map().isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map().containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return map().containsValue(value);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return map().get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return writableMap().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return map().remove(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> m) {
+        if (!m.isEmpty()) writableMap().putAll(m);
+    }
+
+    @Override
+    public void clear() {
+        map().clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return map().keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return map().values();
+    }
+    
+}
@@ -0,0 +1,363 @@
+package com.javawords.faces.gae;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.javawords.faces.serialization.SessionCodec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A session store keeping sessions in memcache. The entry stored under the session id is a
+ * {@link SessionIndex} naming the session attributes, each one of them stored under its own key, so
+ * that a write only has to send the attributes that actually changed. Attribute keys are qualified
+ * with the version of the write, so a write only becomes visible once the index naming its values is
+ * stored. Attributes too large for a single memcache value are split in chunks under a 
+ * {@link ChunkManifest}. Sessions are lost when memcache evicts them.
+ *
+ * <p>With an idle timeout, the index expires once the session has not been written or read for that
+ * long. Reading the session extends the expiration of the index, rewriting it at most once per touch
+ * interval. Attributes only expire with the absolute expiration of the session, if any: once the index
+ * is gone they are never read again and memcache evicts them ahead of entries in use.</p>
+ *
+ * <p>Earlier versions of this library stored the whole attribute map under the session id. Such
+ * sessions are converted to the current layout the first time they are read, given a codec to encode
+ * their attributes with.</p>
+ */
+public class MemcacheSessionStore extends AbstractSessionStore implements ConditionalSessionStore {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemcacheSessionStore.class);
+    
+    /**
+     * The memcache namespace sessions are stored in.
+     */
+    public static final String NAMESPACE = MemcacheSessionStore.class.getPackage().getName() + ".SessionMap";
+    
+    /**
+     * Maximum size of a stored attribute value, leaving room under the 1MB memcache limit for the key
+     * and the value overhead.
+     */
+    static final int MAX_VALUE_SIZE = 1000 * 1000;
+    
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+    
+    private final AsyncMemcacheService asyncMemcache = MemcacheServiceFactory.getAsyncMemcacheService(NAMESPACE);
+    
+    private final boolean async;
+    
+    private final long idleTimeout;
+    
+    private final long touchInterval;
+    
+    private final SessionCodec codec;
+
+    /**
+     * @param async if true, writes are started asynchronously and returned as pending.
+     */
+    public MemcacheSessionStore(boolean async) {
+        this(async, 0, 0);
+    }
+
+    /**
+     * @param async if true, writes are started asynchronously and returned as pending.
+     * @param idleTimeout milliseconds after which a session neither read nor written expires, zero for
+     * never.
+     * @param touchInterval minimum milliseconds between two reads extending the expiration of a session.
+     */
+    public MemcacheSessionStore(boolean async, long idleTimeout, long touchInterval) {
+        this(async, idleTimeout, touchInterval, null);
+    }
+
+    /**
+     * @param async if true, writes are started asynchronously and returned as pending.
+     * @param idleTimeout milliseconds after which a session neither read nor written expires, zero for
+     * never.
+     * @param touchInterval minimum milliseconds between two reads extending the expiration of a session.
+     * @param codec the codec converting sessions stored by earlier versions, {@code null} to drop them.
+     */
+    public MemcacheSessionStore(boolean async, long idleTimeout, long touchInterval, SessionCodec codec) {
+        this.async = async;
+        this.idleTimeout = idleTimeout;
+        this.touchInterval = touchInterval;
+        this.codec = codec;
+    }
+
+    /**
+     * Reads the session index and, unless the session is still at the known version, the attributes it
+     * names. Attributes missing from memcache were either evicted, still in flight when the index was
+     * written, or deleted by a write replacing the index since it was read. The index is read again once
+     * in that case, and if the attributes are still missing the returned record has no version so that it
+     * never passes a version check.
+     * The chunks of all the chunked attributes are read in a single batch, and a chunked attribute that
+     * cannot be joined back is treated as missing.
+     */
+    @Override
+    protected SessionRecord doLoad(String sessionId, long knownVersion) {
+        IdentifiableValue value = idleTimeout > 0 ? memcache.getIdentifiable(sessionId) : null;
+        Object stored = idleTimeout > 0 ? (value == null ? null : value.getValue()) : memcache.get(sessionId);
+        if (stored instanceof Map && codec != null) return migrate(sessionId, (Map<?, ?>) stored);
+        if (!(stored instanceof SessionIndex)) return null;
+        SessionIndex index = (SessionIndex) stored;
+        long now = System.currentTimeMillis();
+        if (index.getExpires() > 0 && now > index.getExpires()) return null;
+        if (idleTimeout > 0 && now - index.getTouched() >= touchInterval) touch(sessionId, value, index);
+        if (knownVersion != SessionRecord.NO_VERSION && index.getVersion() == knownVersion)
+            return SessionRecord.unchanged(knownVersion);
+        SessionRecord record = read(sessionId, index);
+        if (record.getVersion() != SessionRecord.NO_VERSION) return record;
+        Object current = memcache.get(sessionId);
+        if (!(current instanceof SessionIndex) || ((SessionIndex) current).getVersion() == index.getVersion())
+            return record;
+        LOGGER.debug("Session {} was written while being read, reading it again.", sessionId);
+        index = (SessionIndex) current;
+        if (knownVersion != SessionRecord.NO_VERSION && index.getVersion() == knownVersion)
+            return SessionRecord.unchanged(knownVersion);
+        return read(sessionId, index);
+    }
+    
+    /**
+     * Converts a session stored by an earlier version, the attribute map itself under the session id, and
+     * writes it back in the current layout so that it is converted only once. Attributes that cannot be
+     * encoded are dropped.
+     */
+    private SessionRecord migrate(String sessionId, Map<?, ?> legacy) {
+        long version = SessionRecord.nextVersion();
+        Map<String, byte[]> data = new HashMap<String, byte[]>(legacy.size() * 2);
+        Map<String, Long> versions = new HashMap<String, Long>(legacy.size() * 2);
+        for (Map.Entry<?, ?> e : legacy.entrySet()) {
+            if (!(e.getKey() instanceof String)) continue;
+            String name = (String) e.getKey();
+            try {
+                data.put(name, codec.encode(e.getValue()));
+                versions.put(name, version);
+            } catch (IOException iox) {
+                LOGGER.warn("Dropping attribute '" + name + "' of session " + sessionId 
+                        + " while converting it, could not encode it.", iox);
+            }
+        }
+        LOGGER.info("Converting session {} stored by an earlier version, {} attributes.", sessionId, data.size());
+        SessionRecord record = new SessionRecord(data, versions, version);
+        memcache.putAll(attributeBatch(sessionId, record, data.keySet()));
+        memcache.put(sessionId, new SessionIndex(versions, version, 0), indexExpiration(0));
+        return record;
+    }
+    
+    /**
+     * Extends the expiration of a session by rewriting its index, unless it was written in the meantime.
+     * The write is not waited for.
+     */
+    private void touch(String sessionId, IdentifiableValue value, SessionIndex index) {
+        LOGGER.debug("Extending the expiration of session {}.", sessionId);
+        asyncMemcache.putIfUntouched(sessionId, value, index.touch(), indexExpiration(index.getExpires()));
+    }
+    
+    /**
+     * Reads the attributes named by the passed in index.
+     */
+    private SessionRecord read(String sessionId, SessionIndex index) {
+        Map<String, String> keys = index.getAttributeKeys(sessionId);
+        Map<String, Object> values = memcache.getAll(keys.values());
+        Map<String, byte[]> stored = new HashMap<String, byte[]>(values.size());
+        Map<String, Long> versions = new HashMap<String, Long>(values.size());
+        Map<String, ChunkManifest> chunked = new HashMap<String, ChunkManifest>();
+        for (Map.Entry<String, String> e : keys.entrySet()) {
+            Object value = values.get(e.getValue());
+            if (value instanceof ChunkManifest) {
+                chunked.put(e.getKey(), (ChunkManifest) value);
+            } else if (value instanceof byte[]) {
+                stored.put(e.getKey(), (byte[]) value);
+                versions.put(e.getKey(), index.getVersion(e.getKey()));
+            }
+        }
+        if (!chunked.isEmpty()) {
+            List<String> chunkKeys = new ArrayList<String>();
+            for (Map.Entry<String, ChunkManifest> e : chunked.entrySet())
+                chunkKeys.addAll(e.getValue().getChunkKeys(sessionId, e.getKey()));
+            Map<String, Object> chunks = memcache.getAll(chunkKeys);
+            for (Map.Entry<String, ChunkManifest> e : chunked.entrySet()) {
+                byte[] data = e.getValue().join(sessionId, e.getKey(), chunks);
+                if (data == null) {
+                    LOGGER.warn("Chunks of attribute '{}' of session {} are incomplete or corrupted.", 
+                            e.getKey(), sessionId);
+                    continue;
+                }
+                stored.put(e.getKey(), data);
+                versions.put(e.getKey(), e.getValue().getVersion());
+            }
+        }
+        boolean consistent = stored.size() == index.getNames().size();
+        if (!consistent) {
+            LOGGER.warn("{} of {} attributes of session {} were missing from memcache.", new Object[] {
+                index.getNames().size() - stored.size(), index.getNames().size(), sessionId});
+        }
+        return new SessionRecord(stored, versions, consistent ? index.getVersion() : SessionRecord.NO_VERSION,
+                index.getExpires());
+    }
+
+    /**
+     * Writes the updated attributes along with the session index in a single batch. Attributes larger
+     * than {@link #MAX_VALUE_SIZE} are written as chunks in the same batch. With an idle timeout the
+     * index expires earlier than the attributes, so it is written separately. If attributes were updated
+     * or removed, the index being replaced is read in parallel with the write, and the values it names
+     * and the new one does not are deleted once the write is started. Values superseded by concurrent
+     * writes of the same session are left to be evicted.
+     */
+    @Override
+    protected Future<?> doSave(String sessionId, SessionRecord record, Set<String> updated, 
+            Set<String> removed) {
+        Future<Object> previous = updated.isEmpty() && removed.isEmpty() ? null : asyncMemcache.get(sessionId);
+        Map<String, Object> batch = attributeBatch(sessionId, record, updated);
+        SessionIndex index = new SessionIndex(record.getVersions(), record.getVersion(), record.getExpires());
+        if (idleTimeout == 0) batch.put(sessionId, index);
+        Expiration expiration = attributeExpiration(record.getExpires());
+        
+        if (async) {
+            List<Future<?>> futures = new ArrayList<Future<?>>(2);
+            futures.add(asyncMemcache.putAll(batch, expiration));
+            if (idleTimeout > 0) futures.add(asyncMemcache.put(sessionId, index, indexExpiration(record.getExpires())));
+            deleteSuperseded(sessionId, previous, record);
+            return CompositeFuture.of(futures);
+        }
+        if (!batch.isEmpty()) memcache.putAll(batch, expiration);
+        if (idleTimeout > 0) memcache.put(sessionId, index, indexExpiration(record.getExpires()));
+        deleteSuperseded(sessionId, previous, record);
+        return null;
+    }
+    
+    /**
+     * Deletes the values named by the replaced index of a session and not by the passed in record, without
+     * waiting for the delete.
+     * @param previous the read of the replaced index, {@code null} if nothing was superseded.
+     */
+    private void deleteSuperseded(String sessionId, Future<Object> previous, SessionRecord record) {
+        if (previous == null) return;
+        try {
+            Object index = previous.get();
+            if (!(index instanceof SessionIndex)) return;
+            List<String> superseded = supersededKeys(sessionId, (SessionIndex) index, record);
+            if (!superseded.isEmpty()) asyncMemcache.deleteAll(superseded);
+        } catch (ExecutionException ex) {
+            LOGGER.warn("Could not read the replaced index of session " + sessionId 
+                    + ", leaving the values it names to be evicted.", ex.getCause());
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the updated attributes under the version of the record, then replaces the session index only
+     * if it is still the one read at the beginning, using the compare-and-set of memcache. Until the index
+     * is replaced no reader looks up the attributes written, so a losing writer never overwrites anything
+     * the winner published. The values named by the replaced index and not by the new one are deleted
+     * once it is replaced. Writes are always synchronous, since the outcome decides what the caller does
+     * next. On a conflict the attributes written are left for the retry, which writes them again under 
+     * the same keys, or to be evicted.
+     */
+    @Override
+    public SessionRecord saveIfCurrent(String sessionId, long expectedVersion, SessionRecord record, 
+            Set<String> updated, Set<String> removed) {
+        long start = System.nanoTime();
+        IdentifiableValue current = memcache.getIdentifiable(sessionId);
+        if (current != null && current.getValue() instanceof SessionIndex) {
+            SessionIndex index = (SessionIndex) current.getValue();
+            if (index.getVersion() != expectedVersion) return conflict(sessionId, index);
+        }
+        memcache.putAll(attributeBatch(sessionId, record, updated), attributeExpiration(record.getExpires()));
+        SessionIndex index = new SessionIndex(record.getVersions(), record.getVersion(), record.getExpires());
+        Expiration expiration = indexExpiration(record.getExpires());
+        boolean written = current != null ? memcache.putIfUntouched(sessionId, current, index, expiration) 
+                : memcache.put(sessionId, index, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        if (!written) {
+            Object value = memcache.get(sessionId);
+            return value instanceof SessionIndex ? conflict(sessionId, (SessionIndex) value) : SessionRecord.EMPTY;
+        }
+        if (current != null && current.getValue() instanceof SessionIndex) {
+            List<String> superseded = supersededKeys(sessionId, (SessionIndex) current.getValue(), record);
+            if (!superseded.isEmpty()) asyncMemcache.deleteAll(superseded);
+        }
+        recordSave(start, record, updated);
+        return null;
+    }
+    
+    /**
+     * Reads the session written by a conflicting write. The record carries the version of the index
+     * even if some attributes are still in flight, it is the version the next attempt has to expect.
+     */
+    private SessionRecord conflict(String sessionId, SessionIndex index) {
+        SessionRecord record = read(sessionId, index);
+        return new SessionRecord(record.getData(), record.getVersions(), index.getVersion(), index.getExpires());
+    }
+    
+    /**
+     * Returns the expiration of the index of a session, the earliest of the idle timeout from now and the
+     * absolute expiration of the session.
+     */
+    private Expiration indexExpiration(long expires) {
+        long deadline = idleTimeout > 0 ? System.currentTimeMillis() + idleTimeout : 0;
+        if (expires > 0 && (deadline == 0 || expires < deadline)) deadline = expires;
+        return deadline > 0 ? Expiration.onDate(new Date(deadline)) : null;
+    }
+    
+    /**
+     * Returns the expiration of the attributes of a session, its absolute expiration if any.
+     */
+    private static Expiration attributeExpiration(long expires) {
+        return expires > 0 ? Expiration.onDate(new Date(expires)) : null;
+    }
+    
+    /**
+     * Returns the stored values of the updated attributes keyed by their memcache keys. Attributes larger
+     * than {@link #MAX_VALUE_SIZE} are split in chunks.
+     */
+    private static Map<String, Object> attributeBatch(String sessionId, SessionRecord record, 
+            Set<String> updated) {
+        Map<String, Object> batch = new HashMap<String, Object>();
+        for (String name : updated) {
+            byte[] data = record.getData().get(name);
+            long version = record.getVersions().get(name);
+            if (data.length > MAX_VALUE_SIZE) {
+                LOGGER.debug("Attribute '{}' of session {} is {} bytes, storing it in chunks.", new Object[] {
+                    name, sessionId, data.length});
+                batch.putAll(ChunkManifest.split(sessionId, name, data, version, MAX_VALUE_SIZE));
+            } else {
+                batch.put(SessionIndex.attributeKey(sessionId, name, version), data);
+            }
+        }
+        return batch;
+    }
+    
+    /**
+     * Returns the keys of the values named by the previous index of a session but not by the passed in
+     * record. Chunks of chunked values are left to be evicted.
+     */
+    private static List<String> supersededKeys(String sessionId, SessionIndex previous, SessionRecord record) {
+        List<String> result = new ArrayList<String>();
+        for (String name : previous.getNames()) {
+            long version = previous.getVersion(name);
+            Long current = record.getVersions().get(name);
+            if (current == null || current != version) result.add(SessionIndex.attributeKey(sessionId, name, version));
+        }
+        return result;
+    }
+
+    /**
+     * Removes the session index, leaving the attributes it names to be evicted.
+     */
+    @Override
+    public void remove(String sessionId) {
+        memcache.delete(sessionId);
+    }
+    
+}
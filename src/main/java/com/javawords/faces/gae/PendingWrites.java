@@ -0,0 +1,161 @@
+package com.javawords.faces.gae;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the asynchronous session writes started by this instance, so that the end of the
+ * request, or the next request restoring the same session, can wait for them to complete. Failed and
+ * timed out writes are counted in {@link SessionStats} and logged, never thrown.
+ *
+ * <p>A write is forgotten once it is waited for, once it times out, or, for writes nobody waits for,
+ * by a periodic sweep of the writes that completed or outlived their timeout.</p>
+ */
+class PendingWrites {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(PendingWrites.class);
+    
+    private static final ConcurrentMap<String, Write> PENDING = new ConcurrentHashMap<String, Write>();
+    
+    /**
+     * Minimum milliseconds between two sweeps of the settled writes.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+    
+    private static final AtomicLong NEXT_SWEEP = new AtomicLong();
+    
+    private PendingWrites() {
+    }
+    
+    /**
+     * Registers the asynchronous operations writing a session.
+     * @param timeout maximum milliseconds to wait for the write at the end of the request.
+     * @return a handle to wait for the write to complete.
+     */
+    static Write start(String sessionId, List<? extends Future<?>> futures, long timeout) {
+        Write write = new Write(sessionId, futures, timeout);
+        Write previous = PENDING.put(sessionId, write);
+        if (previous != null && !previous.isSettled()) write.previous = previous;
+        sweep();
+        return write;
+    }
+    
+    /**
+     * Forgets the settled writes, at most once per {@link #SWEEP_INTERVAL}.
+     */
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        long next = NEXT_SWEEP.get();
+        if (now < next || !NEXT_SWEEP.compareAndSet(next, now + SWEEP_INTERVAL)) return;
+        for (Map.Entry<String, Write> e : PENDING.entrySet()) {
+            if (e.getValue().isSettled()) PENDING.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    
+    /**
+     * Waits for any pending write of the passed in session started by this instance.
+     * @param timeout maximum milliseconds to wait.
+     */
+    static void await(String sessionId, long timeout) {
+        Write write = PENDING.get(sessionId);
+        if (write != null) write.await(timeout);
+    }
+    
+    /**
+     * An asynchronous write of a session, made of one or more memcache operations.
+     */
+    static class Write {
+        
+        private final String sessionId;
+        
+        private final List<Future<?>> futures;
+        
+        private final long timeout;
+        
+        private final long started = System.currentTimeMillis();
+        
+        private volatile Write previous;
+        
+        private volatile boolean done = false;
+
+        private Write(String sessionId, List<? extends Future<?>> futures, long timeout) {
+            this.sessionId = sessionId;
+            this.futures = new ArrayList<Future<?>>(futures);
+            this.timeout = timeout;
+        }
+        
+        /**
+         * Returns true if there is no point in waiting for this write any more: it was waited for, its
+         * operations and those of any earlier write of the session are done, or it outlived its timeout.
+         */
+        boolean isSettled() {
+            if (done || System.currentTimeMillis() - started > timeout) return true;
+            Write p = previous;
+            if (p != null) {
+                if (!p.isSettled()) return false;
+                previous = null;
+            }
+            for (Future<?> f : futures) if (!f.isDone()) return false;
+            return true;
+        }
+        
+        /**
+         * Waits for the write to complete, for at most the timeout it was started with.
+         * @return true if the write is done, either completed or failed.
+         */
+        boolean await() {
+            return await(timeout);
+        }
+        
+        /**
+         * Waits for the write to complete, including any earlier write of the same session.
+         * @param timeout maximum milliseconds to wait.
+         * @return true if the write is done, either completed or failed.
+         */
+        boolean await(long timeout) {
+            if (done) return true;
+            long deadline = System.currentTimeMillis() + timeout;
+            Write p = previous;
+            if (p != null && p.await(timeout)) previous = null;
+            boolean complete = true;
+            for (Future<?> f : futures) {
+                try {
+                    f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException tx) {
+                    SessionStats.getInstance().asyncTimeout();
+                    LOGGER.warn("Write of session {} not complete after {} ms.", sessionId,
+                            System.currentTimeMillis() - started);
+                    // Later requests would time out waiting for it as well.
+                    PENDING.remove(sessionId, this);
+                    return false;
+                } catch (ExecutionException ex) {
+                    SessionStats.getInstance().asyncFailure();
+                    LOGGER.error("Write of session " + sessionId + " failed.", ex.getCause());
+                    complete = false;
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            // A failed write is not retried, it is done either way.
+            done = true;
+            PENDING.remove(sessionId, this);
+            LOGGER.debug("Write of session {} {} after {} ms.", new Object[] {
+                sessionId, complete ? "complete" : "failed", System.currentTimeMillis() - started});
+            return true;
+        }
+        
+    }
+    
+}
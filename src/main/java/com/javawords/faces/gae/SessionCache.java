@@ -0,0 +1,163 @@
+package com.javawords.faces.gae;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe, in-process cache of session snapshots, keeping hot sessions close to the
+ * request threads of the instance.
+ *
+ * <p>The cache is split into segments, each one guarded by its own lock and holding an equal share of
+ * the entry and byte budgets, so that requests for different sessions rarely contend. Each segment
+ * evicts its least recently used entries when over budget, and entries not accessed for longer than
+ * the idle timeout are dropped.</p>
+ */
+class SessionCache {
+    
+    private final Segment[] segments;
+    
+    private final long idleTimeout;
+    
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries the maximum number of cached sessions.
+     * @param maxBytes the maximum size of the cached sessions, as reported by {@link SessionSnapshot#getSize()}.
+     * @param idleTimeout milliseconds after which an entry not accessed is dropped, zero for no timeout.
+     * @param concurrency the expected number of concurrent request threads, rounded up to a power of two.
+     */
+    SessionCache(int maxEntries, long maxBytes, long idleTimeout, int concurrency) {
+        int count = 1;
+        while (count < concurrency) count <<= 1;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((maxEntries + count - 1) / count, (maxBytes + count - 1) / count);
+        }
+        this.idleTimeout = idleTimeout;
+    }
+    
+    SessionSnapshot get(String sessionId) {
+        return segmentFor(sessionId).get(sessionId, System.currentTimeMillis());
+    }
+    
+    void put(String sessionId, SessionSnapshot snapshot) {
+        segmentFor(sessionId).put(sessionId, snapshot, System.currentTimeMillis());
+    }
+    
+    void remove(String sessionId) {
+        segmentFor(sessionId).remove(sessionId);
+    }
+    
+    /**
+     * Returns the number of cached sessions.
+     */
+    int size() {
+        int size = 0;
+        for (Segment s : segments) size += s.size();
+        return size;
+    }
+    
+    /**
+     * Returns the size of the cached sessions in bytes.
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (Segment s : segments) bytes += s.getBytes();
+        return bytes;
+    }
+    
+    /**
+     * Returns the number of entries evicted so far, either for exceeding the budget or for being idle.
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+    
+    private Segment segmentFor(String sessionId) {
+        int h = sessionId.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+    
+    private static class Entry {
+        
+        final SessionSnapshot snapshot;
+        
+        long lastAccess;
+
+        Entry(SessionSnapshot snapshot, long lastAccess) {
+            this.snapshot = snapshot;
+            this.lastAccess = lastAccess;
+        }
+        
+    }
+    
+    private class Segment {
+        
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        
+        private final int maxEntries;
+        
+        private final long maxBytes;
+        
+        private long bytes;
+
+        Segment(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+        
+        synchronized SessionSnapshot get(String sessionId, long now) {
+            Entry entry = entries.get(sessionId);
+            if (entry == null) return null;
+            if (isIdle(entry, now)) {
+                removeEntry(sessionId);
+                evictions.incrementAndGet();
+                return null;
+            }
+            entry.lastAccess = now;
+            return entry.snapshot;
+        }
+        
+        synchronized void put(String sessionId, SessionSnapshot snapshot, long now) {
+            removeEntry(sessionId);
+            if (snapshot.getSize() > maxBytes) return;
+            entries.put(sessionId, new Entry(snapshot, now));
+            bytes += snapshot.getSize();
+            // Entries are kept in access order, so the least recently used ones come first.
+            Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, Entry> eldest = i.next();
+                if (!isIdle(eldest.getValue(), now) && entries.size() <= maxEntries && bytes <= maxBytes) break;
+                bytes -= eldest.getValue().snapshot.getSize();
+                i.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        
+        synchronized void remove(String sessionId) {
+            removeEntry(sessionId);
+        }
+        
+        synchronized int size() {
+            return entries.size();
+        }
+        
+        synchronized long getBytes() {
+            return bytes;
+        }
+        
+        private void removeEntry(String sessionId) {
+            Entry entry = entries.remove(sessionId);
+            if (entry != null) bytes -= entry.snapshot.getSize();
+        }
+        
+        private boolean isIdle(Entry entry, long now) {
+            return idleTimeout > 0 && now - entry.lastAccess > idleTimeout;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,81 @@
+package com.javawords.faces.gae;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes made to a {@link SessionMap} during a request: the serialized form of every attribute
+ * that was added or changed, and the names of the attributes that were removed.
+ */
+class SessionDelta {
+    
+    private final Map<String, byte[]> updated = new HashMap<String, byte[]>();
+    
+    private final Set<String> removed = new HashSet<String>();
+    
+    void update(String name, byte[] data) {
+        updated.put(name, data);
+    }
+    
+    void remove(String name) {
+        removed.add(name);
+    }
+
+    Map<String, byte[]> getUpdated() {
+        return Collections.unmodifiableMap(updated);
+    }
+
+    Set<String> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+    
+    boolean isEmpty() {
+        return updated.isEmpty() && removed.isEmpty();
+    }
+    
+    /**
+     * Applies these changes on top of a session written concurrently by another request. Attributes
+     * changed by this delta take the passed in version, the rest keep the state of the other write.
+     * @param current the session as written by the other request.
+     * @param version the version of the merged session.
+     */
+    SessionRecord mergeInto(SessionRecord current, long version) {
+        Map<String, byte[]> data = new HashMap<String, byte[]>(current.getData());
+        Map<String, Long> versions = new HashMap<String, Long>(current.getVersions());
+        data.putAll(updated);
+        for (String name : updated.keySet()) versions.put(name, version);
+        data.keySet().removeAll(removed);
+        versions.keySet().removeAll(removed);
+        return new SessionRecord(data, versions, version);
+    }
+    
+    /**
+     * Returns the number of attributes changed both by this delta and by a concurrent write, that is
+     * attributes whose stored version differs from the one this delta was based on.
+     * @param base the version of every attribute when the changes were made, keyed by name.
+     * @param current the session as written by the other request.
+     */
+    int countConflicts(Map<String, Long> base, SessionRecord current) {
+        int result = 0;
+        for (String name : updated.keySet()) if (!equal(base.get(name), current.getVersions().get(name))) result++;
+        for (String name : removed) if (!equal(base.get(name), current.getVersions().get(name))) result++;
+        return result;
+    }
+    
+    private static boolean equal(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+    
+    /**
+     * Returns the total number of serialized bytes to be written.
+     */
+    int getSize() {
+        int size = 0;
+        for (byte[] data : updated.values()) size += data.length;
+        return size;
+    }
+    
+}
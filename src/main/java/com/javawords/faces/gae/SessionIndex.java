@@ -0,0 +1,108 @@
+package com.javawords.faces.gae;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The memcache entry stored under a session id by {@link MemcacheSessionStore}, listing the names of the
+ * session attributes. Each attribute is stored under its own key, so that a request only has to write
+ * back the attributes it actually changed.
+ *
+ * <p>The index carries the version of the session, so that an instance holding a cached copy of the
+ * session can tell whether it is still current by fetching just the index. The index also
+ * records the version of the write that last stored each attribute, and attributes are stored under
+ * keys qualified with that version. A write never overwrites the values named by the index it
+ * replaces, so replacing the index publishes all the attributes of the write at once. Once the index is
+ * replaced, the values it named that the new index does not are deleted. A reader holding the older
+ * index then misses them, as if memcache had evicted them, and reads the index again.</p>
+ *
+ * <p>Finally, the index records when it was last written, so that readers can tell when its expiration
+ * is due to be extended, and the absolute expiration of the session.</p>
+ */
+class SessionIndex implements Serializable {
+    
+    private static final long serialVersionUID = 4L;
+    
+    private static final char KEY_SEPARATOR = '/';
+    
+    private final Map<String, Long> attributes;
+    
+    private final long version;
+    
+    private final long expires;
+    
+    private final long touched;
+
+    /**
+     * @param attributes the version of the write that last stored each attribute, keyed by name.
+     * @param version the version of this index.
+     * @param expires the absolute expiration of the session in milliseconds, zero for none.
+     */
+    SessionIndex(Map<String, Long> attributes, long version, long expires) {
+        this(new HashMap<String, Long>(attributes), version, expires, System.currentTimeMillis());
+    }
+    
+    private SessionIndex(Map<String, Long> attributes, long version, long expires, long touched) {
+        this.attributes = attributes;
+        this.version = version;
+        this.expires = expires;
+        this.touched = touched;
+    }
+    
+    /**
+     * Returns a copy of this index written now.
+     */
+    SessionIndex touch() {
+        return new SessionIndex(attributes, version, expires, System.currentTimeMillis());
+    }
+    
+    long getVersion() {
+        return version;
+    }
+
+    long getExpires() {
+        return expires;
+    }
+    
+    /**
+     * Returns the time this index was last written, in milliseconds.
+     */
+    long getTouched() {
+        return touched;
+    }
+
+    Set<String> getNames() {
+        return Collections.unmodifiableSet(attributes.keySet());
+    }
+    
+    /**
+     * Returns the version of the write that last stored the named attribute.
+     */
+    long getVersion(String name) {
+        Long result = attributes.get(name);
+        return result == null ? SessionRecord.NO_VERSION : result;
+    }
+    
+    /**
+     * Returns the memcache keys of all the attributes listed in this index, keyed by attribute name.
+     */
+    Map<String, String> getAttributeKeys(String sessionId) {
+        Map<String, String> result = new HashMap<String, String>(attributes.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Long> e : attributes.entrySet()) 
+            result.put(e.getKey(), attributeKey(sessionId, e.getKey(), e.getValue()));
+        return result;
+    }
+    
+    /**
+     * Returns the memcache key under which the named attribute of a session is stored by the write of
+     * the passed in version. Session ids never contain the separator, and the version comes before the
+     * name, so keys never collide whatever the attribute names are.
+     */
+    static String attributeKey(String sessionId, String name, long version) {
+        return sessionId + KEY_SEPARATOR + Long.toHexString(version) + KEY_SEPARATOR + name;
+    }
+    
+}
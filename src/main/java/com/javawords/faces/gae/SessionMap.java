@@ -0,0 +1,295 @@
+package com.javawords.faces.gae;
+
+import com.javawords.faces.serialization.SessionCodec;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A session attribute map keeping track of the attributes put, removed or changed since it was
+ * restored, so that only those have to be written back to memcache.
+ *
+ * <p>The serialized form of every attribute is kept as it was restored. Immutable values are taken
+ * from the {@link SessionSnapshot}, while mutable values are deserialized on first access, so that the
+ * instances a request modifies are its own. Attributes that were put or removed are marked as dirty,
+ * while mutable values that were modified in place are detected by comparing their serialized form
+ * against the restored one. Only values read during the request can have been modified, so values never
+ * read are neither deserialized nor serialized again. Values that cannot be deserialized read as
+ * {@code null}.</p>
+ */
+class SessionMap extends AbstractMap<String, Object> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionMap.class);
+
+    /**
+     * Stands for the value of an attribute not deserialized yet.
+     */
+    private static final Object UNDECODED = new Object();
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    private final Map<String, byte[]> stored = new HashMap<String, byte[]>();
+
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+
+    private final Set<String> dirty = new HashSet<String>();
+
+    private final Set<String> read = new HashSet<String>();
+
+    private final Set<Entry<String, Object>> entrySet = new EntrySet();
+
+    private final SessionCodec codec;
+
+    private long version;
+
+    SessionMap() {
+        this(SessionSnapshot.EMPTY, null);
+    }
+
+    /**
+     * Creates a map holding the attributes of the passed in snapshot.
+     * @param codec the codec deserializing the mutable attributes.
+     */
+    SessionMap(SessionSnapshot snapshot, SessionCodec codec) {
+        this.codec = codec;
+        stored.putAll(snapshot.getData());
+        for (String name : stored.keySet()) {
+            Map<String, Object> shared = snapshot.getValues();
+            values.put(name, shared.containsKey(name) ? shared.get(name) : UNDECODED);
+        }
+        versions.putAll(snapshot.getVersions());
+        version = snapshot.getVersion();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return entrySet;
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = values.get(key);
+        if (value == UNDECODED) value = decode((String) key);
+        if (value != null) read.add((String) key);
+        return value;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        dirty.add(key);
+        Object previous = values.put(key, value);
+        return previous == UNDECODED ? deserialize(key) : previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (!values.containsKey(key)) return null;
+        dirty.add((String) key);
+        Object previous = values.remove(key);
+        return previous == UNDECODED ? deserialize((String) key) : previous;
+    }
+
+    /**
+     * Deserializes the stored value of an attribute, replacing its placeholder. Replacing the value of an
+     * existing key is safe while iterating.
+     */
+    private Object decode(String name) {
+        Object value = deserialize(name);
+        values.put(name, value);
+        return value;
+    }
+
+    /**
+     * Returns a new instance of the stored value of an attribute, or {@code null} if it cannot be
+     * deserialized.
+     */
+    private Object deserialize(String name) {
+        try {
+            return codec.decode(stored.get(name));
+        } catch (IOException iox) {
+            LOGGER.warn("Could not deserialize session attribute '" + name + "', reading it as null.", iox);
+        } catch (ClassNotFoundException cnfe) {
+            LOGGER.warn("Could not deserialize session attribute '" + name + "', reading it as null.", cnfe);
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        dirty.addAll(values.keySet());
+        values.clear();
+    }
+
+    /**
+     * Collects the changes made since this map was created or last committed. Attributes that were
+     * neither put nor removed are not serialized at all if they hold an immutable value or were not read.
+     * The rest are compressed only if they changed.
+     * @param codec the codec encoding the attributes.
+     * @return the changes to be written back, possibly empty.
+     */
+    SessionDelta getDelta(SessionCodec codec) {
+        SessionDelta delta = new SessionDelta();
+        for (Entry<String, Object> e : values.entrySet()) {
+            String name = e.getKey();
+            byte[] original = stored.get(name);
+            if (original != null && !dirty.contains(name) 
+                    && (isImmutable(e.getValue()) || !read.contains(name))) continue;
+            try {
+                byte[] data = codec.serialize(e.getValue());
+                if (original == null || !codec.isEncodingOf(original, data)) delta.update(name, codec.compress(data));
+            } catch (IOException iox) {
+                LOGGER.error("Could not serialize session attribute '" + name + "', it will not be persisted.", iox);
+            }
+        }
+        for (String name : stored.keySet()) {
+            if (!values.containsKey(name)) delta.remove(name);
+        }
+        return delta;
+    }
+
+    /**
+     * Returns the version of the write that stored each persisted attribute, once the passed in changes
+     * are committed with the passed in version. Attributes that could not be serialized are not included.
+     */
+    Map<String, Long> getPersistedVersions(SessionDelta delta, long version) {
+        Map<String, Long> result = new HashMap<String, Long>(versions);
+        for (String name : delta.getUpdated().keySet()) result.put(name, version);
+        result.keySet().removeAll(delta.getRemoved());
+        return result;
+    }
+
+    /**
+     * Marks the passed in changes as persisted with the passed in version.
+     */
+    void commit(SessionDelta delta, long version) {
+        Map<String, Long> persisted = getPersistedVersions(delta, version);
+        versions.clear();
+        versions.putAll(persisted);
+        stored.putAll(delta.getUpdated());
+        stored.keySet().removeAll(delta.getRemoved());
+        dirty.clear();
+        read.clear();
+        this.version = version;
+    }
+
+    /**
+     * Returns the version of the session this map was restored from or last committed with.
+     */
+    long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the version of the write that stored each persisted attribute, keyed by name.
+     */
+    Map<String, Long> getVersions() {
+        return new HashMap<String, Long>(versions);
+    }
+    
+    /**
+     * Returns a snapshot of the persisted state of this map, sharing the immutable values only.
+     */
+    SessionSnapshot toSnapshot() {
+        Map<String, Object> persisted = new HashMap<String, Object>(stored.size());
+        for (String name : stored.keySet()) {
+            Object value = values.get(name);
+            if (value != UNDECODED && isImmutable(value)) persisted.put(name, value);
+        }
+        return new SessionSnapshot(stored, persisted, versions, version);
+    }
+
+    private static boolean isImmutable(Object value) {
+        if (value == null || value instanceof Enum) return true;
+        // Exact classes, subclasses of Number such as AtomicLong are mutable.
+        Class<?> c = value.getClass();
+        return c == String.class || c == Integer.class || c == Long.class || c == Boolean.class 
+                || c == Character.class || c == Double.class || c == Float.class || c == Short.class 
+                || c == Byte.class;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<String, Object>> {
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+            final Iterator<Entry<String, Object>> i = values.entrySet().iterator();
+            return new Iterator<Entry<String, Object>>() {
+
+                private Entry<String, Object> current;
+
+                @Override
+                public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                @Override
+                public Entry<String, Object> next() {
+                    current = i.next();
+                    return new TrackingEntry(current);
+                }
+
+                @Override
+                public void remove() {
+                    i.remove();
+                    dirty.add(current.getKey());
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return values.size();
+        }
+
+    }
+
+    private class TrackingEntry extends SimpleEntry<String, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Entry<String, Object> entry;
+
+        TrackingEntry(Entry<String, Object> entry) {
+            super(entry);
+            this.entry = entry;
+        }
+
+        @Override
+        public Object getValue() {
+            read.add(entry.getKey());
+            Object value = super.getValue();
+            if (value == UNDECODED) {
+                value = decode(entry.getKey());
+                super.setValue(value);
+            }
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = getValue();
+            dirty.add(entry.getKey());
+            super.setValue(value);
+            entry.setValue(value);
+            return previous;
+        }
+
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.javawords.faces.gae;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The persisted state of a session as exchanged with a {@link SessionStore}: the serialized form of
+ * every attribute, the version of the write that last stored each one of them, and the version of the
+ * session as a whole.
+ *
+ * <p>Every write of a session gets a new, random version, so that an instance holding a cached copy of
+ * the session can tell whether it is still current without reading the attributes.</p>
+ */
+public final class SessionRecord {
+    
+    /**
+     * Version of sessions that were never persisted, or whose stored state could not be verified.
+     */
+    public static final long NO_VERSION = 0L;
+    
+    /**
+     * A record of a session without attributes.
+     */
+    public static final SessionRecord EMPTY = new SessionRecord(Collections.<String, byte[]>emptyMap(), 
+            Collections.<String, Long>emptyMap(), NO_VERSION);
+    
+    private static final Random RANDOM = new Random();
+    
+    private final Map<String, byte[]> data;
+    
+    private final Map<String, Long> versions;
+    
+    private final long version;
+    
+    private final long expires;
+
+    /**
+     * Creates a record holding the attributes of a session, without an absolute expiration.
+     * @param data the serialized attributes keyed by name.
+     * @param versions the version of the write that last stored each attribute, keyed by name.
+     * @param version the version of the session.
+     */
+    public SessionRecord(Map<String, byte[]> data, Map<String, Long> versions, long version) {
+        this(data, versions, version, 0);
+    }
+
+    /**
+     * Creates a record holding the attributes of a session.
+     * @param data the serialized attributes keyed by name.
+     * @param versions the version of the write that last stored each attribute, keyed by name.
+     * @param version the version of the session.
+     * @param expires time in milliseconds after which the session expires regardless of activity, zero 
+     * if it never does.
+     */
+    public SessionRecord(Map<String, byte[]> data, Map<String, Long> versions, long version, long expires) {
+        this.data = Collections.unmodifiableMap(new HashMap<String, byte[]>(data));
+        this.versions = Collections.unmodifiableMap(new HashMap<String, Long>(versions));
+        this.version = version;
+        this.expires = expires;
+    }
+    
+    private SessionRecord(long version) {
+        this.data = null;
+        this.versions = null;
+        this.version = version;
+        this.expires = 0;
+    }
+    
+    private SessionRecord(SessionRecord record, long expires) {
+        this.data = record.data;
+        this.versions = record.versions;
+        this.version = record.version;
+        this.expires = expires;
+    }
+    
+    /**
+     * Returns a copy of this record expiring at the passed in time, zero for never.
+     */
+    public SessionRecord expiringAt(long expires) {
+        return expires == this.expires ? this : new SessionRecord(this, expires);
+    }
+    
+    /**
+     * Creates a record without attributes, returned by a store to tell that the session is still at the
+     * version already known to the caller.
+     */
+    public static SessionRecord unchanged(long version) {
+        return new SessionRecord(version);
+    }
+    
+    /**
+     * Generates a new version. Versions are random rather than sequential, since instances writing the
+     * same session concurrently would otherwise end up with the same version for different content.
+     */
+    public static long nextVersion() {
+        long version;
+        do {
+            version = RANDOM.nextLong();
+        } while (version == NO_VERSION);
+        return version;
+    }
+    
+    /**
+     * Returns false if this record only carries the version of a session known to be unchanged.
+     */
+    public boolean hasData() {
+        return data != null;
+    }
+
+    /**
+     * Returns the serialized attributes keyed by name, {@code null} if the record has no data.
+     */
+    public Map<String, byte[]> getData() {
+        return data;
+    }
+
+    /**
+     * Returns the version of the write that last stored each attribute, {@code null} if the record has 
+     * no data.
+     */
+    public Map<String, Long> getVersions() {
+        return versions;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the time in milliseconds after which the session expires regardless of activity, zero if
+     * it never does.
+     */
+    public long getExpires() {
+        return expires;
+    }
+    
+    /**
+     * Returns true if the session has passed its absolute expiration.
+     */
+    public boolean isExpired() {
+        return expires > 0 && System.currentTimeMillis() > expires;
+    }
+    
+    /**
+     * Returns the total size of the serialized attributes in bytes.
+     */
+    public int getSize() {
+        if (data == null) return 0;
+        int size = 0;
+        for (byte[] d : data.values()) size += d.length;
+        return size;
+    }
+    
+}
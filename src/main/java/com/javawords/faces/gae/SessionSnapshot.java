@@ -0,0 +1,122 @@
+package com.javawords.faces.gae;
+
+import com.javawords.faces.serialization.SessionCodec;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable copy of a session's attributes, holding their serialized form as stored in the
+ * {@link SessionStore} and the deserialized instances of the immutable ones, such as strings and
+ * numbers, shared by the requests of the session. Mutable attributes are deserialized by every request
+ * on first access, so that no two requests ever share a mutable instance.
+ */
+class SessionSnapshot {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionSnapshot.class);
+    
+    static final SessionSnapshot EMPTY = new SessionSnapshot(Collections.<String, byte[]>emptyMap(), 
+            Collections.<String, Object>emptyMap(), Collections.<String, Long>emptyMap(), SessionRecord.NO_VERSION);
+    
+    private final Map<String, byte[]> data;
+    
+    private final Map<String, Object> values;
+    
+    private final Map<String, Long> versions;
+    
+    private final int size;
+    
+    private final long version;
+
+    SessionSnapshot(Map<String, byte[]> data, Map<String, Object> values, Map<String, Long> versions, 
+            long version) {
+        this.data = Collections.unmodifiableMap(new HashMap<String, byte[]>(data));
+        this.values = Collections.unmodifiableMap(new HashMap<String, Object>(values));
+        this.versions = Collections.unmodifiableMap(new HashMap<String, Long>(versions));
+        int total = 0;
+        for (Map.Entry<String, byte[]> e : data.entrySet()) total += e.getKey().length() * 2 + e.getValue().length;
+        this.size = total;
+        this.version = version;
+    }
+    
+    /**
+     * Deserializes the immutable attributes of the passed in session into a new snapshot. Those whose
+     * serialized form is identical to the one held by the previous snapshot of the session keep their
+     * existing instance. Immutable attributes that cannot be deserialized are dropped, mutable ones are
+     * kept serialized for the requests to deserialize.
+     * @param record the stored session.
+     * @param previous the previous snapshot of the session, may be {@code null}.
+     * @param codec the codec decoding the attributes.
+     */
+    static SessionSnapshot restore(SessionRecord record, SessionSnapshot previous, SessionCodec codec) {
+        Map<String, byte[]> data = record.getData();
+        Map<String, byte[]> restored = new HashMap<String, byte[]>(data.size());
+        Map<String, Object> values = new HashMap<String, Object>(data.size());
+        for (Map.Entry<String, byte[]> e : data.entrySet()) {
+            String name = e.getKey();
+            try {
+                if (!codec.isImmutable(e.getValue())) {
+                    // Deserialized by each request on first access.
+                } else if (previous != null && previous.values.containsKey(name) 
+                        && Arrays.equals(e.getValue(), previous.data.get(name))) {
+                    values.put(name, previous.values.get(name));
+                } else {
+                    values.put(name, codec.decode(e.getValue()));
+                }
+                restored.put(name, e.getValue());
+            } catch (IOException iox) {
+                LOGGER.warn("Dropping session attribute '" + name + "', could not deserialize it.", iox);
+            } catch (ClassNotFoundException cnfe) {
+                LOGGER.warn("Dropping session attribute '" + name + "', could not deserialize it.", cnfe);
+            }
+        }
+        return new SessionSnapshot(restored, values, record.getVersions(), record.getVersion());
+    }
+
+    /**
+     * Returns the serialized attributes keyed by name.
+     */
+    Map<String, byte[]> getData() {
+        return data;
+    }
+
+    /**
+     * Returns the deserialized immutable attributes keyed by name.
+     */
+    Map<String, Object> getValues() {
+        return values;
+    }
+    
+    /**
+     * Returns the version of the write that stored each attribute, keyed by name.
+     */
+    Map<String, Long> getVersions() {
+        return versions;
+    }
+    
+    /**
+     * Returns the approximate memory held by the serialized attributes, in bytes.
+     */
+    int getSize() {
+        return size;
+    }
+    
+    /**
+     * Returns the version of the session this snapshot was restored from or persisted with.
+     */
+    long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the stored form of this snapshot.
+     */
+    SessionRecord toRecord() {
+        return new SessionRecord(data, versions, version);
+    }
+    
+}
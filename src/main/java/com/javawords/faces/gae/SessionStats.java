@@ -0,0 +1,187 @@
+package com.javawords.faces.gae;
+
+import com.javawords.faces.serialization.SessionCodec;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the GAE session layer, shared by all the requests served by this instance.
+ */
+public final class SessionStats {
+    
+    private static final SessionStats INSTANCE = new SessionStats();
+    
+    private final AtomicLong versionHits = new AtomicLong();
+    
+    private final AtomicLong versionMisses = new AtomicLong();
+    
+    private final AtomicLong asyncFailures = new AtomicLong();
+    
+    private final AtomicLong asyncTimeouts = new AtomicLong();
+    
+    private final AtomicLong largeAttributes = new AtomicLong();
+    
+    private final AtomicLong coalescedRestores = new AtomicLong();
+    
+    private final AtomicLong writeConflicts = new AtomicLong();
+    
+    private final AtomicLong attributeConflicts = new AtomicLong();
+    
+    private final AtomicLong unresolvedConflicts = new AtomicLong();
+    
+    private volatile SessionCodec codec;
+    
+    private volatile SessionStore store;
+
+    private SessionStats() {
+    }
+    
+    public static SessionStats getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Returns the number of restores served from the in-process session cache after a version check,
+     * each one saving a memcache read of the session attributes.
+     */
+    public long getVersionHits() {
+        return versionHits.get();
+    }
+    
+    /**
+     * Returns the number of version checked restores that had to read the session attributes from
+     * memcache, because the session was not cached or had been changed by another instance.
+     */
+    public long getVersionMisses() {
+        return versionMisses.get();
+    }
+    
+    /**
+     * Returns the number of asynchronous session writes that failed.
+     */
+    public long getAsyncFailures() {
+        return asyncFailures.get();
+    }
+    
+    /**
+     * Returns the number of times waiting for an asynchronous session write timed out.
+     */
+    public long getAsyncTimeouts() {
+        return asyncTimeouts.get();
+    }
+    
+    /**
+     * Returns the number of session attribute writes larger than the configured size warning.
+     */
+    public long getLargeAttributes() {
+        return largeAttributes.get();
+    }
+    
+    /**
+     * Returns the number of restores that waited for a concurrent restore of the same session instead
+     * of reading it from the store themselves.
+     */
+    public long getCoalescedRestores() {
+        return coalescedRestores.get();
+    }
+    
+    /**
+     * Returns the number of optimistic session writes that found the session written concurrently by
+     * another request, and had to merge and retry.
+     */
+    public long getWriteConflicts() {
+        return writeConflicts.get();
+    }
+    
+    /**
+     * Returns the number of attributes changed by two concurrent requests, where the last write won.
+     */
+    public long getAttributeConflicts() {
+        return attributeConflicts.get();
+    }
+    
+    /**
+     * Returns the number of optimistic session writes that ran out of retries and were written
+     * unconditionally.
+     */
+    public long getUnresolvedConflicts() {
+        return unresolvedConflicts.get();
+    }
+    
+    /**
+     * Returns the codec encoding the session attributes, holding the encoded sizes and timings, or
+     * {@code null} before the first request.
+     */
+    public SessionCodec getCodec() {
+        return codec;
+    }
+    
+    /**
+     * Returns the latency and byte counters of the session store, or {@code null} before the first
+     * request.
+     */
+    public SessionStoreStats getStoreStats() {
+        SessionStore s = store;
+        return s == null ? null : s.getStats();
+    }
+    
+    /**
+     * Returns the class name of the session store, or {@code null} before the first request.
+     */
+    public String getStoreName() {
+        SessionStore s = store;
+        return s == null ? null : s.getClass().getName();
+    }
+    
+    void versionHit() {
+        versionHits.incrementAndGet();
+    }
+    
+    void versionMiss() {
+        versionMisses.incrementAndGet();
+    }
+
+    void asyncFailure() {
+        asyncFailures.incrementAndGet();
+    }
+    
+    void asyncTimeout() {
+        asyncTimeouts.incrementAndGet();
+    }
+    
+    void largeAttribute() {
+        largeAttributes.incrementAndGet();
+    }
+    
+    void coalescedRestore() {
+        coalescedRestores.incrementAndGet();
+    }
+    
+    void writeConflict(int attributes) {
+        writeConflicts.incrementAndGet();
+        attributeConflicts.addAndGet(attributes);
+    }
+    
+    void unresolvedConflict() {
+        unresolvedConflicts.incrementAndGet();
+    }
+    
+    void setCodec(SessionCodec codec) {
+        this.codec = codec;
+    }
+    
+    void setStore(SessionStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionStats{versionHits=" + versionHits + ", versionMisses=" + versionMisses 
+                + ", asyncFailures=" + asyncFailures + ", asyncTimeouts=" + asyncTimeouts 
+                + ", largeAttributes=" + largeAttributes + ", coalescedRestores=" + coalescedRestores 
+                + ", writeConflicts=" + writeConflicts 
+                + ", attributeConflicts=" + attributeConflicts + ", unresolvedConflicts=" + unresolvedConflicts 
+                + ", codec=" + codec + ", store=" + getStoreName() + ", storeStats=" + getStoreStats() 
+                + '}';
+    }
+    
+}
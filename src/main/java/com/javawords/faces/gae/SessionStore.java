@@ -0,0 +1,46 @@
+package com.javawords.faces.gae;
+
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent storage of session attributes, used by the GAE session layer to restore the session map
+ * on the first access of a request and to write back its changes once the response is rendered.
+ *
+ * <p>The store to use is selected with the <code>com.javawords.faces.gae.SESSION_STORE</code> context
+ * parameter. Implementations must be thread safe, a single instance serves all the requests.</p>
+ * @see GAESessionConfig
+ */
+public interface SessionStore {
+    
+    /**
+     * Loads a session.
+     * @param sessionId the id of the session.
+     * @param knownVersion the version of the session already known to the caller, or 
+     * {@link SessionRecord#NO_VERSION}. If the stored session is still at this version, the store may skip
+     * reading the attributes and return {@link SessionRecord#unchanged(long)}.
+     * @return the stored session, or {@code null} if there is none.
+     */
+    SessionRecord load(String sessionId, long knownVersion);
+    
+    /**
+     * Writes the changes of a session.
+     * @param sessionId the id of the session.
+     * @param record the state of the session after the changes.
+     * @param updated the names of the attributes added or changed.
+     * @param removed the names of the attributes removed.
+     * @return the write if it completes asynchronously, {@code null} if it is already complete.
+     */
+    Future<?> save(String sessionId, SessionRecord record, Set<String> updated, Set<String> removed);
+    
+    /**
+     * Removes a session.
+     */
+    void remove(String sessionId);
+    
+    /**
+     * Returns the latency and byte counters of this store.
+     */
+    SessionStoreStats getStats();
+    
+}
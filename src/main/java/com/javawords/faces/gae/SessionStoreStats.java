@@ -0,0 +1,86 @@
+package com.javawords.faces.gae;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and byte counters of a {@link SessionStore}, kept the same way by every store so that they
+ * can be compared across deployments.
+ */
+public final class SessionStoreStats {
+    
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadMisses = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    
+    /**
+     * Records a completed load.
+     * @param nanos time spent loading.
+     * @param record the loaded session, {@code null} if there was none.
+     */
+    public void recordLoad(long nanos, SessionRecord record) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+        if (record == null) loadMisses.incrementAndGet();
+        else bytesRead.addAndGet(record.getSize());
+    }
+    
+    /**
+     * Records a save.
+     * @param nanos time spent on the request thread saving.
+     * @param bytes number of serialized attribute bytes written.
+     */
+    public void recordSave(long nanos, long bytes) {
+        saves.incrementAndGet();
+        saveNanos.addAndGet(nanos);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * Returns the number of loads that found no stored session.
+     */
+    public long getLoadMisses() {
+        return loadMisses.get();
+    }
+
+    /**
+     * Returns the total time spent loading, in nanoseconds.
+     */
+    public long getLoadNanos() {
+        return loadNanos.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getSaves() {
+        return saves.get();
+    }
+
+    /**
+     * Returns the total time request threads spent saving, in nanoseconds.
+     */
+    public long getSaveNanos() {
+        return saveNanos.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionStoreStats{loads=" + loads + ", loadMisses=" + loadMisses + ", loadNanos=" + loadNanos 
+                + ", bytesRead=" + bytesRead + ", saves=" + saves + ", saveNanos=" + saveNanos 
+                + ", bytesWritten=" + bytesWritten + '}';
+    }
+    
+}
@@ -0,0 +1,80 @@
+package com.javawords.faces.gae;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent computations of the same key: the first caller runs the computation, while
+ * callers arriving before it completes wait for it and share its result instead of running their own.
+ * Nothing is cached once the computation completes.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Runs the passed in computation, or waits for the one already running for the same key.
+     * @return the result of the computation.
+     */
+    V execute(K key, Callable<V> computation) {
+        FutureTask<V> task = new FutureTask<V>(computation);
+        FutureTask<V> running = flights.putIfAbsent(key, task);
+        if (running != null) {
+            joined(key);
+            try {
+                return result(running);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                return result(computation);
+            }
+        }
+        try {
+            task.run();
+            return result(task);
+        } catch (InterruptedException ix) {
+            // Not possible, the task has already completed.
+            throw new IllegalStateException(ix);
+        } finally {
+            flights.remove(key, task);
+        }
+    }
+
+    /**
+     * Stops sharing the computation running for the passed in key, so that callers arriving from now on
+     * start a new one. Called when the result of the running computation is known to be outdated.
+     */
+    void forget(K key) {
+        flights.remove(key);
+    }
+
+    /**
+     * Called when a caller waits for a computation already running, does nothing by default.
+     */
+    protected void joined(K key) {
+    }
+
+    private V result(FutureTask<V> task) throws InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private V result(Callable<V> computation) {
+        try {
+            return computation.call();
+        } catch (RuntimeException rx) {
+            throw rx;
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
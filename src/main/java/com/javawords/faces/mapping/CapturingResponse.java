@@ -0,0 +1,165 @@
+package com.javawords.faces.mapping;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response writing through to the wrapped one while keeping a copy of the bytes written, for
+ * {@link OutputCache}. It also records whether the response may be shared between visitors: it may
+ * not once a cookie is set, an error or redirect is sent, or the status is set to anything but 200.
+ */
+final class CapturingResponse extends HttpServletResponseWrapper {
+
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream(8192);
+
+    private ServletOutputStream stream;
+
+    private PrintWriter writer;
+
+    private boolean shareable = true;
+
+    CapturingResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Returns true if the captured output may be served to other visitors.
+     */
+    boolean isShareable() {
+        return shareable;
+    }
+
+    /**
+     * Returns the bytes written so far, flushing the writer first.
+     */
+    byte[] toByteArray() {
+        if (writer != null) writer.flush();
+        return captured.toByteArray();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) throw new IllegalStateException("getWriter() has already been called.");
+        if (stream == null) stream = new TeeOutputStream(super.getOutputStream());
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) throw new IllegalStateException("getOutputStream() has already been called.");
+            stream = new TeeOutputStream(super.getOutputStream());
+            writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) writer.flush();
+        super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        captured.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        captured.reset();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        shareable = false;
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if ("Set-Cookie".equalsIgnoreCase(name)) shareable = false;
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if ("Set-Cookie".equalsIgnoreCase(name)) shareable = false;
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        if (sc != SC_OK) shareable = false;
+        super.setStatus(sc);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        if (sc != SC_OK) shareable = false;
+        super.setStatus(sc, sm);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        shareable = false;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        shareable = false;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        shareable = false;
+        super.sendRedirect(location);
+    }
+
+    /**
+     * Writes to the output stream of the wrapped response and to the captured bytes.
+     */
+    private final class TeeOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        TeeOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            captured.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            captured.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+}
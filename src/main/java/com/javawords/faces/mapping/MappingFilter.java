@@ -1,10 +1,11 @@
 package com.javawords.faces.mapping;
 
+import com.javawords.faces.gae.GAEExternalContextFactory;
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -15,6 +16,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +25,26 @@ import org.slf4j.LoggerFactory;
  * page without the extension, to the corresponding JSF URL. It must be declared in web.xml configuration
  * file with an initialization parameter named "faces extension" having the extension used to map the
  * FacesServlet.
+ * <p>
+ * The existence of the page of every mapped URI is cached. By default the pages are listed once at
+ * startup into a route table, resolving every request with a single map lookup, and listed again every 
+ * "rebuild interval" seconds (2 by default) in the Development project stage. The request dispatchers 
+ * of the pages are kept too, unless the "cache dispatchers" parameter is false. Set the "precompute 
+ * lookups" parameter to false to look pages up as they are requested instead, caching up to 
+ * "lookup cache size" found and missing pages (1024 by default, 0 disables caching). Lookups are not 
+ * cached this way in the Development project stage.
+ * <p>
+ * Pretty URLs with parameters are mapped by the "routes" parameter, a semicolon-separated list of 
+ * <code>template=view</code> pairs such as <code>/blog/{slug}/comments=/blog/comments</code>, the views 
+ * being page paths without extension. Routes are checked before the pages and their parameters are set 
+ * as request attributes, by name. The MappingViewHandler generates the URLs of the views from the same 
+ * routes.
+ * <p>
+ * The output of the views listed by the <code>com.javawords.faces.mapping.OUTPUT_CACHE_VIEWS</code> context 
+ * parameter is cached for anonymous requests and served from here without entering the Faces lifecycle, 
+ * see {@link OutputCache}. The output cache is disabled in the Development project stage. When the
+ * AuthFilter is used, it must be mapped before this filter, so that the users it keeps in a token
+ * rather than the session are known when the cache is consulted.
  */
 public class MappingFilter extends HttpServlet implements Filter {
     
@@ -35,6 +57,14 @@ public class MappingFilter extends HttpServlet implements Filter {
     private String lookupExtension;
 
     private List<String> excludes = new ArrayList<String>(0);
+
+    private ResourceLookupCache lookups;
+
+    private UriClassifier classifier;
+
+    private Router router;
+
+    private OutputCache outputCache;
     
     /**
      * Process the request/response pair. Check if the requested URI ends with the desired pattern and 
@@ -49,65 +79,50 @@ public class MappingFilter extends HttpServlet implements Filter {
         
         // Get the requested URI
         String uri = httpReq.getRequestURI();
-        LOGGER.debug("Requested URI is " + uri);
+        LOGGER.debug("Requested URI is {}", uri);
         
         try {
             
-            // Check if the URI matches mapping creteria.
-            boolean matches = false;
-            boolean excluded = false;
-            for (String s : excludes) {
-                if(uri.startsWith(s)) {
-                    excluded = true;
-                    LOGGER.debug("URI '" + uri + "' is exluded from filtering.");
-                    break;
+            // Check the route templates first.
+            if (router != null && !classifier.isExcluded(uri)) {
+                Router.Match match = router.match(uri, classifier.pathStart(uri));
+                if (match != null && forward(match, httpReq, response)) {
+                    return;
                 }
             }
             
-            if(!excluded) matches = uri.matches(".*/[\\w\\-]+/*");
-
-            if (matches && !excluded) {
-                
-                // Remove any trailing slashes from the requested URI
-                while (uri.endsWith("/")) {
-                    uri = uri.substring(0, uri.length() - 1);
-                    LOGGER.debug("Removed trailing slash from the requested URI: {}", uri);
-                }
+            // Check if the URI matches mapping creteria, stripping the context path and trailing slashes.
+            String page = classifier.classify(uri);
+            if (page != null) {
                 
                 ServletContext context = filterConfig.getServletContext();
                 
-                // Strip context path from the requested URI
-                String path = context.getContextPath();
-                if (path.length() > 0 && uri.startsWith(path)) {
-                    uri = uri.substring(path.length());
-                    LOGGER.debug("Stripped the context path from the requested URI: {}", uri);
-                }
-                
                 // Check if there is actually a file to handle the forward.
-                URL url = context.getResource(uri + lookupExtension);
-                if (url != null) {
+                Route route = lookups.find(page);
+                if (route != null) {
                     
-                    // Generate the forward URI
-                    String forwardURI = uri + facesExtension;
+                    if (serveCached(page, page, httpReq, response)) {
+                        return;
+                    }
                     
                     // Get the request dispatcher
-                    RequestDispatcher rd = context.getRequestDispatcher(forwardURI);
+                    RequestDispatcher rd = route.getDispatcher(context);
                     if(rd != null){
-                        LOGGER.debug("Forwarding to " + forwardURI);
+                        LOGGER.debug("Forwarding to {}", route.getForwardURI());
                         // Forward the request to FacesServlet
                         rd.forward(request, response);
                         return;
                     }
                     
-                    LOGGER.debug("Cannot get a request dispatcher for the generated URI: [{}]", forwardURI);                    
+                    LOGGER.debug("Cannot get a request dispatcher for the generated URI: [{}]", route.getForwardURI());                    
                 }
                 
-                LOGGER.debug("Resource " + uri + lookupExtension + " does not exist.");
+                LOGGER.debug("Resource {}{} does not exist.", page, lookupExtension);
                 
             }
             
             // We are not interested for this request, pass it to the FilterChain.
-            LOGGER.debug("Passing URI '" + uri + "' down the filter chain..");
+            LOGGER.debug("Passing URI '{}' down the filter chain..", uri);
             chain.doFilter(request, response);
             
         } catch (ServletException sx) {
@@ -118,6 +133,53 @@ public class MappingFilter extends HttpServlet implements Filter {
         
     }
     
+    /**
+     * Forwards a request matching a route template to its view, exposing the parameters of the template
+     * as request attributes.
+     * @return false if there is no request dispatcher for the view.
+     */
+    private boolean forward(Router.Match match, HttpServletRequest request, ServletResponse response) 
+            throws ServletException, IOException {
+        RouteTemplate template = match.getTemplate();
+        RequestDispatcher rd = template.getRoute().getDispatcher(filterConfig.getServletContext());
+        if (rd == null) {
+            LOGGER.debug("Cannot get a request dispatcher for the route: [{}]", template);
+            return false;
+        }
+        if (serveCached(template.getView(), match.getPath(), request, response)) {
+            return true;
+        }
+        Map<String, String> parameters = match.getParameters();
+        for (Map.Entry<String, String> e : parameters.entrySet()) {
+            request.setAttribute(e.getKey(), e.getValue());
+        }
+        request.setAttribute(Router.PARAMETERS_ATTRIBUTE, parameters);
+        request.setAttribute(Router.TEMPLATE_ATTRIBUTE, template);
+        request.setAttribute(Router.PATH_ATTRIBUTE, match.getPath());
+        LOGGER.debug("Forwarding to {} by route {}", template.getRoute().getForwardURI(), template);
+        rd.forward(request, response);
+        return true;
+    }
+    
+    /**
+     * Writes the cached output of the requested view to the response, if there is any. On a miss the key 
+     * of the output is set as a request attribute, for the MappingViewHandler to capture it.
+     * @param view the path of the view, without extension.
+     * @param path the requested path, without the context path.
+     * @return true if the response was served from the cache.
+     */
+    private boolean serveCached(String view, String path, HttpServletRequest request, ServletResponse response) 
+            throws IOException {
+        if (outputCache == null) return false;
+        String key = outputCache.keyFor(view, path, request);
+        if (key == null) return false;
+        if (outputCache.serve(key, (HttpServletResponse) response)) return true;
+        request.setAttribute(OutputCache.KEY_ATTRIBUTE, key);
+        // Reading the session map while rendering must not create a session, or the output is not stored.
+        request.setAttribute(GAEExternalContextFactory.CREATE_ON_WRITE_ATTRIBUTE, Boolean.TRUE);
+        return false;
+    }
+    
     /**
      * Handle the passed-in FilterConfig
      */
@@ -139,6 +201,62 @@ public class MappingFilter extends HttpServlet implements Filter {
             LOGGER.info("Directory '" + s + "' will be excluded from filtering.");
         }
         
+        // Cache the resource lookups, listing the pages again in development where they come and go.
+        String sizeParam = config.getInitParameter("lookup cache size");
+        String precomputeParam = config.getInitParameter("precompute lookups");
+        String dispatchersParam = config.getInitParameter("cache dispatchers");
+        String rebuildParam = config.getInitParameter("rebuild interval");
+        int cacheSize = sizeParam == null ? 1024 : Integer.parseInt(sizeParam.trim());
+        boolean precompute = precomputeParam == null || Boolean.parseBoolean(precomputeParam.trim());
+        boolean cacheDispatchers = dispatchersParam == null || Boolean.parseBoolean(dispatchersParam.trim());
+        long rebuildInterval = 0;
+        boolean development = 
+                "Development".equals(config.getServletContext().getInitParameter("javax.faces.PROJECT_STAGE"));
+        if (development) {
+            rebuildInterval = (rebuildParam == null ? 2L : Long.parseLong(rebuildParam.trim())) * 1000L;
+            if (precompute) {
+                LOGGER.info("Development project stage, pages will be listed every {} ms.", rebuildInterval);
+            } else {
+                LOGGER.info("Development project stage, resource lookups will not be cached.");
+                cacheSize = 0;
+            }
+        }
+        classifier = new UriClassifier(config.getServletContext().getContextPath(), 
+                excludes.toArray(new String[excludes.size()]));
+        lookups = new ResourceLookupCache(config.getServletContext(), lookupExtension, facesExtension,
+                cacheSize, precompute, cacheDispatchers, rebuildInterval);
+        
+        // Compile the route templates, shared with the MappingViewHandler.
+        String routesParam = config.getInitParameter("routes");
+        if (routesParam != null) {
+            List<RouteTemplate> templates = new ArrayList<RouteTemplate>();
+            try {
+                for (String[] entry : Router.parse(routesParam)) {
+                    String forwardURI = entry[1] + facesExtension;
+                    RequestDispatcher rd = cacheDispatchers 
+                            ? config.getServletContext().getRequestDispatcher(forwardURI) : null;
+                    templates.add(new RouteTemplate(entry[0], entry[1], new Route(forwardURI, rd)));
+                    LOGGER.info("Route {} -> {}", entry[0], forwardURI);
+                }
+                router = new Router(templates);
+            } catch (IllegalArgumentException iae) {
+                throw new ServletException("Invalid routes: " + iae.getMessage(), iae);
+            }
+            config.getServletContext().setAttribute(Router.CONTEXT_ATTRIBUTE, router);
+        }
+        
+        // Cache the output of the configured views, shared with the MappingViewHandler capturing it.
+        if (!development) {
+            try {
+                outputCache = OutputCache.create(config.getServletContext());
+            } catch (NumberFormatException nfe) {
+                throw new ServletException("Invalid output cache configuration: " + nfe.getMessage(), nfe);
+            }
+            if (outputCache != null) {
+                config.getServletContext().setAttribute(OutputCache.CONTEXT_ATTRIBUTE, outputCache);
+            }
+        }
+        
     }
     
     /**
@@ -1,14 +1,23 @@
 package com.javawords.faces.mapping;
 
+import com.javawords.faces.auth.AuthFilter;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import javax.faces.FacesException;
 import javax.faces.application.ViewHandler;
+import javax.faces.component.UIViewParameter;
 import javax.faces.component.UIViewRoot;
+import javax.faces.context.ExternalContext;
 import javax.faces.context.FacesContext;
 import javax.faces.view.ViewDeclarationLanguage;
+import javax.faces.view.ViewMetadata;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +33,25 @@ public class MappingViewHandler extends ViewHandler {
      * The original handler we are extending.
      */
     private ViewHandler prevHandler = null;
+
+    /**
+     * The route templates of the MappingFilter, looked up on first use.
+     */
+    private volatile Router router;
+
+    /**
+     * Context parameter setting the number of views whose action and
+     * bookmarkable URLs are cached, 512 by default, 0 to disable caching.
+     * Up to 64 bookmarkable URLs with different parameters are cached per view.
+     */
+    public static final String URL_CACHE_SIZE = "com.javawords.faces.mapping.URL_CACHE_SIZE";
+
+    /**
+     * The URLs generated so far, replaced if the context path changes.
+     */
+    private volatile UrlCache urlCache;
+
+    private volatile int urlCacheSize = -1;
     
     /** Creates a new instance of MappingViewHandler. By including
      * a parameter of the same type, we encourage the JSF framework
@@ -84,16 +112,52 @@ public class MappingViewHandler extends ViewHandler {
     }
 
     /**
-     * Delegate control to the original ViewHandler
+     * Delegate control to the original ViewHandler, capturing the output
+     * if the MappingFilter asked for it to be cached. The output is not
+     * stored if the request has a session or a logged-in user, since it
+     * may then carry state of a single visitor, or if the response cannot
+     * be shared. The MappingFilter marks such requests with
+     * GAEExternalContextFactory.CREATE_ON_WRITE_ATTRIBUTE, so that reading
+     * the session map while rendering does not create a session.
      */
     @Override
     public void renderView(FacesContext context, UIViewRoot viewToRender)
         throws IOException, FacesException {
         logger.debug("renderView() called, viewId = [{}].", viewToRender.getViewId());
-        prevHandler.renderView(context, viewToRender);
+        ExternalContext external = context.getExternalContext();
+        String key = (String) external.getRequestMap().remove(OutputCache.KEY_ATTRIBUTE);
+        OutputCache cache = key == null ? null
+                : (OutputCache) external.getApplicationMap().get(OutputCache.CONTEXT_ATTRIBUTE);
+        if (cache == null || !(external.getResponse() instanceof HttpServletResponse)
+                || external.getSession(false) != null) {
+            prevHandler.renderView(context, viewToRender);
+            logger.debug("renderView() complete.");
+            return;
+        }
+        CapturingResponse capture = new CapturingResponse((HttpServletResponse) external.getResponse());
+        external.setResponse(capture);
+        try {
+            prevHandler.renderView(context, viewToRender);
+        } finally {
+            external.setResponse(capture.getResponse());
+        }
+        if (capture.isShareable() && external.getSession(false) == null && isAnonymous(external)) {
+            cache.store(key, capture.getContentType(), capture.toByteArray());
+        }
         logger.debug("renderView() complete.");
     }
 
+    /**
+     * Returns true if the request has no logged-in user. A user kept in a
+     * token has no session, and is unknown to the MappingFilter if the
+     * AuthFilter had not run yet when the cache was consulted.
+     */
+    private static boolean isAnonymous(ExternalContext external) {
+        Object request = external.getRequest();
+        return !(request instanceof HttpServletRequest)
+                || AuthFilter.getUser((HttpServletRequest) request) == null;
+    }
+
     @Override
     public String deriveViewId(FacesContext context, String rawViewId) {
         logger.debug("deriveViewId() called, rawViewId = [{}].", rawViewId);
@@ -110,11 +174,39 @@ public class MappingViewHandler extends ViewHandler {
     /**
      * This is the only method needed to be extended. First, we get the
      * normal URL form the original ViewHandler. Then we simply return
-     * the same URL with the extension stripped of.
+     * the same URL with the extension stripped of. Views mapped by a route
+     * template get the URL of the route instead, the requested one if the
+     * request matched the route. URLs are cached by view id, see
+     * {@link #URL_CACHE_SIZE}.
      */
     @Override
     public String getActionURL(FacesContext context, String viewId) {
         logger.debug("getActionURL() called, viewId = [{}].", viewId);
+        ExternalContext external = context.getExternalContext();
+        // The URL of a view requested through its route is the requested one.
+        Object current = external.getRequestMap().get(Router.TEMPLATE_ATTRIBUTE);
+        if (current != null && viewId != null && ((RouteTemplate) current).isView(viewId)) {
+            return external.getRequestContextPath() + external.getRequestMap().get(Router.PATH_ATTRIBUTE);
+        }
+        UrlCache cache = viewId == null ? null : getUrlCache(external);
+        String url = cache == null ? null : cache.getAction(viewId);
+        if (url == null) {
+            url = createActionURL(context, viewId);
+            if (cache != null) {
+                cache.putAction(viewId, url);
+            }
+        }
+        return url;
+    }
+
+    private String createActionURL(FacesContext context, String viewId) {
+        RouteTemplate template = getTemplate(context, viewId);
+        if (template != null) {
+            String path = template.expand(Collections.<String, List<String>>emptyMap());
+            if (path != null) {
+                return context.getExternalContext().getRequestContextPath() + path;
+            }
+        }
         String origURL = prevHandler.getActionURL(context, viewId);
         int dotIdx = origURL.lastIndexOf(".");
         if (dotIdx > 0) {
@@ -136,6 +228,36 @@ public class MappingViewHandler extends ViewHandler {
     public String getBookmarkableURL(FacesContext context, String viewId,
             Map<String, List<String>> parameters, boolean includeViewParams) {
         logger.debug("getBookmarkableURL() called, viewId = [{}].", viewId);
+        // View parameters depend on the state of the view, only URLs without them are cached.
+        UrlCache cache = includeViewParams || viewId == null ? null : getUrlCache(context.getExternalContext());
+        String url = cache == null ? null : cache.getBookmarkable(viewId, parameters);
+        if (url == null) {
+            url = createBookmarkableURL(context, viewId, parameters, includeViewParams);
+            // URLs rewritten with a session id belong to a single user.
+            if (cache != null && url.indexOf(';') < 0) {
+                cache.putBookmarkable(viewId, parameters, url);
+            }
+        }
+        return url;
+    }
+
+    private String createBookmarkableURL(FacesContext context, String viewId,
+            Map<String, List<String>> parameters, boolean includeViewParams) {
+        RouteTemplate template = getTemplate(context, viewId);
+        if (template != null && includeViewParams) {
+            parameters = withViewParameters(context, viewId, parameters);
+        }
+        String path = template == null ? null : template.expand(parameters);
+        if (path != null) {
+            // Parameters not consumed by the template go to the query string.
+            Map<String, List<String>> query = parameters == null
+                    ? new LinkedHashMap<String, List<String>>() : new LinkedHashMap<String, List<String>>(parameters);
+            query.keySet().removeAll(template.getParameters());
+            ExternalContext external = context.getExternalContext();
+            String result = external.encodeBookmarkableURL(external.getRequestContextPath() + path, query);
+            logger.debug("getBookmarkableURL() result: [{}].", result);
+            return result;
+        }
         String result = prevHandler.getBookmarkableURL(context, viewId, parameters,
                 includeViewParams);
 //        String replace = prevHandler.getActionURL(context, viewId);
@@ -144,6 +266,40 @@ public class MappingViewHandler extends ViewHandler {
         return result;
     }
 
+    /**
+     * Returns the passed in parameters along with the current values of the
+     * view parameters of the passed in view, the way the default view handler
+     * includes them. Parameters passed in take precedence.
+     */
+    private Map<String, List<String>> withViewParameters(FacesContext context, String viewId,
+            Map<String, List<String>> parameters) {
+        ViewDeclarationLanguage vdl = prevHandler.getViewDeclarationLanguage(context, viewId);
+        ViewMetadata metadata = vdl == null ? null : vdl.getViewMetadata(context, viewId);
+        if (metadata == null) {
+            return parameters;
+        }
+        UIViewRoot current = context.getViewRoot();
+        UIViewRoot root = current != null && viewId.equals(current.getViewId())
+                ? current : metadata.createMetadataView(context);
+        Collection<UIViewParameter> viewParameters = ViewMetadata.getViewParameters(root);
+        if (viewParameters.isEmpty()) {
+            return parameters;
+        }
+        Map<String, List<String>> result = parameters == null
+                ? new LinkedHashMap<String, List<String>>() : new LinkedHashMap<String, List<String>>(parameters);
+        for (UIViewParameter viewParameter : viewParameters) {
+            String name = viewParameter.getName();
+            if (name == null || result.containsKey(name)) {
+                continue;
+            }
+            String value = viewParameter.getStringValue(context);
+            if (value != null) {
+                result.put(name, Collections.singletonList(value));
+            }
+        }
+        return result;
+    }
+
     @Override
     public String getRedirectURL(FacesContext context, String viewId,
             Map<String, List<String>> parameters, boolean includeViewParams) {
@@ -159,6 +315,45 @@ public class MappingViewHandler extends ViewHandler {
         prevHandler.writeState(context);
     }
 
+    /**
+     * Returns the URL cache of the context path of the request, {@code null}
+     * if caching is disabled.
+     */
+    private UrlCache getUrlCache(ExternalContext external) {
+        int size = urlCacheSize;
+        if (size < 0) {
+            String param = external.getInitParameter(URL_CACHE_SIZE);
+            size = param == null ? 512 : Integer.parseInt(param.trim());
+            urlCacheSize = size;
+        }
+        if (size == 0) {
+            return null;
+        }
+        UrlCache cache = urlCache;
+        String contextPath = external.getRequestContextPath();
+        if (cache == null || !cache.getContextPath().equals(contextPath)) {
+            cache = new UrlCache(contextPath, size, 64);
+            urlCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the route template of the passed in view, {@code null} if it
+     * has none.
+     */
+    private RouteTemplate getTemplate(FacesContext context, String viewId) {
+        Router routes = router;
+        if (routes == null) {
+            routes = (Router) context.getExternalContext().getApplicationMap().get(Router.CONTEXT_ATTRIBUTE);
+            if (routes == null) {
+                return null;
+            }
+            router = routes;
+        }
+        return viewId == null ? null : routes.forView(alterViewId(viewId));
+    }
+
     private String alterViewId(String viewId) {
         int dotIdx = viewId.lastIndexOf(".");
         if (dotIdx > 0) {
@@ -0,0 +1,256 @@
+package com.javawords.faces.mapping;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.javawords.faces.auth.AuthFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the rendered output of configured views for anonymous requests, so that {@link MappingFilter}
+ * serves them without entering the Faces lifecycle. Pages are captured by {@link MappingViewHandler}
+ * and kept in a local LRU cache bounded by size in bytes and in memcache, both expiring after the
+ * configured time.
+ *
+ * <p>Only GET requests without a logged-in user, see {@link AuthFilter#getUser(HttpServletRequest)},
+ * and without request parameters other than the configured ones are cached. Pages are keyed by path,
+ * the preferred locale of the request and the values of the configured parameters. A page is not
+ * stored if rendering it created a session, set a cookie, did not end with a 200 status or was done
+ * for a logged-in user, since its output then belongs to a single visitor. In stateless mode, the
+ * {@link AuthFilter} knows the user of a request only once it has run for the request, so it must be
+ * mapped before {@link MappingFilter}. Rendering a cached view creates a session only when an
+ * attribute is put, see {@link com.javawords.faces.gae.GAEExternalContextFactory#CREATE_ON_WRITE_ATTRIBUTE}.
+ * </p>
+ *
+ * <p>Configured with the following context parameters:</p>
+ * <ul>
+ *  <li>{@link #VIEWS}: comma-separated list of the cached views, as view ids or paths without extension.
+ *  </li>
+ *  <li>{@link #PARAMETERS}: comma-separated list of the request parameters the output depends on.</li>
+ *  <li>{@link #TTL}: seconds a page is cached for, 60 by default.</li>
+ *  <li>{@link #MAX_BYTES}: maximum size in bytes of the pages cached locally, 8MB by default.</li>
+ *  <li>{@link #MEMCACHE}: share the pages through memcache, true by default.</li>
+ * </ul>
+ */
+final class OutputCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutputCache.class);
+
+    private static final String PREFIX = "com.javawords.faces.mapping.OUTPUT_CACHE_";
+
+    static final String VIEWS = PREFIX + "VIEWS";
+    static final String PARAMETERS = PREFIX + "PARAMETERS";
+    static final String TTL = PREFIX + "TTL";
+    static final String MAX_BYTES = PREFIX + "MAX_BYTES";
+    static final String MEMCACHE = PREFIX + "MEMCACHE";
+
+    /**
+     * The name of the context attribute holding the output cache of the application.
+     */
+    static final String CONTEXT_ATTRIBUTE = OutputCache.class.getName();
+
+    /**
+     * The name of the request attribute holding the key of a page to capture.
+     */
+    static final String KEY_ATTRIBUTE = "com.javawords.faces.mapping.outputCacheKey";
+
+    private static final String NAMESPACE = "com.javawords.faces.mapping.output";
+
+    private final Set<String> views;
+
+    private final String[] parameters;
+
+    private final Set<String> allowedParameters;
+
+    private final int ttl;
+
+    private final long maxBytes;
+
+    /**
+     * The locally cached pages, in access order. Guarded by itself, as is {@link #localBytes}.
+     */
+    private final LinkedHashMap<String, Page> local = new LinkedHashMap<String, Page>(64, 0.75f, true);
+
+    private long localBytes;
+
+    private final MemcacheService memcache;
+
+    private final AsyncMemcacheService asyncMemcache;
+
+    private OutputCache(Set<String> views, String[] parameters, int ttl, long maxBytes, boolean useMemcache) {
+        this.views = views;
+        this.parameters = parameters;
+        this.allowedParameters = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(parameters)));
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+        this.memcache = useMemcache ? MemcacheServiceFactory.getMemcacheService(NAMESPACE) : null;
+        this.asyncMemcache = useMemcache ? MemcacheServiceFactory.getAsyncMemcacheService(NAMESPACE) : null;
+    }
+
+    /**
+     * Creates the output cache configured by the context parameters of the passed in context.
+     * @return the cache, or {@code null} if no views are configured.
+     */
+    static OutputCache create(ServletContext context) {
+        String viewsParam = context.getInitParameter(VIEWS);
+        if (viewsParam == null || viewsParam.trim().length() == 0) return null;
+        Set<String> views = new HashSet<String>();
+        for (String view : viewsParam.split(",")) {
+            if (view.trim().length() > 0) views.add(stripExtension(view.trim()));
+        }
+        String parametersParam = context.getInitParameter(PARAMETERS);
+        String[] parameters = new String[0];
+        if (parametersParam != null && parametersParam.trim().length() > 0) {
+            parameters = parametersParam.trim().split("\\s*,\\s*");
+        }
+        String ttlParam = context.getInitParameter(TTL);
+        String maxBytesParam = context.getInitParameter(MAX_BYTES);
+        String memcacheParam = context.getInitParameter(MEMCACHE);
+        int ttl = ttlParam == null ? 60 : Integer.parseInt(ttlParam.trim());
+        long maxBytes = maxBytesParam == null ? 8L << 20 : Long.parseLong(maxBytesParam.trim());
+        boolean useMemcache = memcacheParam == null || Boolean.parseBoolean(memcacheParam.trim());
+        LOGGER.info("Caching the output of views {} for {} seconds.", views, ttl);
+        return new OutputCache(Collections.unmodifiableSet(views), parameters, ttl, maxBytes, useMemcache);
+    }
+
+    static String stripExtension(String viewId) {
+        int dot = viewId.lastIndexOf('.');
+        return dot > viewId.lastIndexOf('/') ? viewId.substring(0, dot) : viewId;
+    }
+
+    /**
+     * Returns the key of the output of the passed in view for the passed in request, or {@code null}
+     * if the output of the request cannot be cached.
+     * @param view the path of the view, without extension.
+     * @param path the requested path, without the context path, telling apart the URIs of route templates.
+     * Every component of the key is prefixed by its length, so that no two requests share a key unless
+     * they have the same path, locale and parameter values.
+     */
+    String keyFor(String view, String path, HttpServletRequest request) {
+        if (!views.contains(view) || !"GET".equals(request.getMethod())) return null;
+        for (Object name : request.getParameterMap().keySet()) {
+            if (!allowedParameters.contains(name)) return null;
+        }
+        if (AuthFilter.getUser(request) != null) return null;
+        StringBuilder key = new StringBuilder();
+        appendComponent(key, path);
+        appendComponent(key, String.valueOf(request.getLocale()));
+        for (String name : parameters) {
+            String[] values = request.getParameterValues(name);
+            if (values == null) continue;
+            appendComponent(key, name);
+            key.append(values.length).append('#');
+            for (String value : values) appendComponent(key, value);
+        }
+        return key.toString();
+    }
+
+    private static void appendComponent(StringBuilder key, String component) {
+        key.append(component.length()).append(':').append(component);
+    }
+
+    /**
+     * Writes the cached output of the passed in key to the response.
+     * @return false if there is no cached output for the key.
+     */
+    boolean serve(String key, HttpServletResponse response) throws IOException {
+        Page page;
+        synchronized (local) {
+            page = local.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (page == null || page.expires < now) {
+            page = null;
+            if (memcache != null) {
+                try {
+                    page = (Page) memcache.get(key);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to read cached output of " + key, e);
+                }
+            }
+            if (page == null || page.expires < now) return false;
+            putLocal(key, page);
+        }
+        LOGGER.debug("Serving cached output of {}", key);
+        if (page.contentType != null) response.setContentType(page.contentType);
+        response.setContentLength(page.body.length);
+        response.getOutputStream().write(page.body);
+        return true;
+    }
+
+    /**
+     * Stores the output of a page.
+     */
+    void store(String key, String contentType, byte[] body) {
+        Page page = new Page(contentType, body, System.currentTimeMillis() + ttl * 1000L);
+        putLocal(key, page);
+        if (asyncMemcache != null) {
+            asyncMemcache.put(key, page, Expiration.byDeltaSeconds(ttl));
+        }
+        LOGGER.debug("Cached output of {}, {} bytes.", key, body.length);
+    }
+
+    /**
+     * Caches a page locally, evicting the least recently used pages while the cached pages exceed the
+     * maximum size. Pages larger than the maximum size are not cached locally.
+     */
+    private void putLocal(String key, Page page) {
+        long weight = weightOf(key, page);
+        synchronized (local) {
+            Page previous = local.remove(key);
+            if (previous != null) localBytes -= weightOf(key, previous);
+            if (weight > maxBytes) return;
+            local.put(key, page);
+            localBytes += weight;
+            Iterator<Map.Entry<String, Page>> eldest = local.entrySet().iterator();
+            while (localBytes > maxBytes) {
+                Map.Entry<String, Page> entry = eldest.next();
+                localBytes -= weightOf(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the approximate size in bytes of a cached page and its key.
+     */
+    private static long weightOf(String key, Page page) {
+        return page.body.length + 2L * key.length();
+    }
+
+    /**
+     * A cached page.
+     */
+    static final class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String contentType;
+
+        private final byte[] body;
+
+        private final long expires;
+
+        Page(String contentType, byte[] body, long expires) {
+            this.contentType = contentType;
+            this.body = body;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.javawords.faces.mapping;
+
+import java.net.MalformedURLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which mapped paths have a page to handle them, so that {@link MappingFilter} looks up the
+ * resources of the web application once per path rather than once per request.
+ *
+ * <p>The pages can be listed once at startup into a {@link RouteTable}, making every later lookup a
+ * hash lookup. The table can be rebuilt periodically, for development where pages come and go.
+ * Otherwise lookups are cached as they happen, found and missing paths separately and both bounded:
+ * once the missing paths fill their cache it is cleared, so that requests for random paths cannot
+ * grow it or evict the paths of existing pages.</p>
+ */
+final class ResourceLookupCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceLookupCache.class);
+
+    private final ServletContext context;
+
+    private final String lookupExtension;
+
+    private final String facesExtension;
+
+    private final int maxSize;
+
+    private final boolean cacheDispatchers;
+
+    /**
+     * The routes of all the pages, {@code null} unless listed at startup.
+     */
+    private volatile RouteTable table;
+
+    private final long rebuildInterval;
+
+    private final AtomicLong nextRebuild = new AtomicLong();
+
+    private final ConcurrentMap<String, Route> found;
+
+    private final ConcurrentMap<String, Boolean> missing;
+
+    /**
+     * @param context the context of the web application.
+     * @param lookupExtension the extension of the pages.
+     * @param facesExtension the extension mapping the FacesServlet.
+     * @param maxSize the maximum number of found and of missing paths cached, 0 to look up every time.
+     * @param precompute list the pages at startup.
+     * @param cacheDispatchers get the dispatchers of the pages once, rather than on every forward.
+     * @param rebuildInterval milliseconds after which the listed pages are listed again, 0 for never.
+     */
+    ResourceLookupCache(ServletContext context, String lookupExtension, String facesExtension, int maxSize,
+            boolean precompute, boolean cacheDispatchers, long rebuildInterval) {
+        this.context = context;
+        this.lookupExtension = lookupExtension;
+        this.facesExtension = facesExtension;
+        this.maxSize = maxSize;
+        this.cacheDispatchers = cacheDispatchers;
+        this.rebuildInterval = rebuildInterval;
+        this.found = new ConcurrentHashMap<String, Route>();
+        this.missing = new ConcurrentHashMap<String, Boolean>();
+        if (precompute) {
+            table = RouteTable.build(context, lookupExtension, facesExtension, cacheDispatchers);
+            nextRebuild.set(System.currentTimeMillis() + rebuildInterval);
+            LOGGER.info("Found {} pages to map.", table.size());
+        }
+    }
+
+    /**
+     * Returns the route of the page of the passed in path, the path without the lookup extension, or
+     * {@code null} if there is no page for it.
+     */
+    Route find(String path) throws MalformedURLException {
+        RouteTable routes = table;
+        if (routes != null) {
+            if (rebuildInterval > 0) routes = checkTable(routes);
+            return routes.get(path);
+        }
+        if (maxSize <= 0) return lookup(path);
+        Route route = found.get(path);
+        if (route != null) return route;
+        if (missing.containsKey(path)) return null;
+        route = lookup(path);
+        if (route != null) {
+            if (found.size() < maxSize) found.put(path, route);
+        } else {
+            if (missing.size() >= maxSize) missing.clear();
+            missing.put(path, Boolean.TRUE);
+        }
+        return route;
+    }
+
+    private Route lookup(String path) throws MalformedURLException {
+        if (context.getResource(path + lookupExtension) == null) return null;
+        String forwardURI = path + facesExtension;
+        return new Route(forwardURI, cacheDispatchers && maxSize > 0 ? context.getRequestDispatcher(forwardURI) : null);
+    }
+
+    /**
+     * Lists the pages again once the rebuild interval elapses. The first request after the interval
+     * rebuilds the table, other requests go on with the current one.
+     */
+    private RouteTable checkTable(RouteTable routes) {
+        long now = System.currentTimeMillis();
+        long next = nextRebuild.get();
+        if (now < next || !nextRebuild.compareAndSet(next, now + rebuildInterval)) return routes;
+        RouteTable rebuilt = RouteTable.build(context, lookupExtension, facesExtension, cacheDispatchers);
+        if (rebuilt.size() != routes.size()) LOGGER.info("Found {} pages to map.", rebuilt.size());
+        table = rebuilt;
+        return rebuilt;
+    }
+
+}
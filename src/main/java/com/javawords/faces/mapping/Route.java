@@ -0,0 +1,35 @@
+package com.javawords.faces.mapping;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+
+/**
+ * The page a mapped path is forwarded to by {@link MappingFilter}.
+ */
+final class Route {
+
+    private final String forwardURI;
+
+    private final RequestDispatcher dispatcher;
+
+    /**
+     * @param forwardURI the URI of the page, relative to the context path.
+     * @param dispatcher the dispatcher of the page, {@code null} to get one on every forward.
+     */
+    Route(String forwardURI, RequestDispatcher dispatcher) {
+        this.forwardURI = forwardURI;
+        this.dispatcher = dispatcher;
+    }
+
+    String getForwardURI() {
+        return forwardURI;
+    }
+
+    /**
+     * Returns the dispatcher of the page, {@code null} if the container provides none.
+     */
+    RequestDispatcher getDispatcher(ServletContext context) {
+        return dispatcher != null ? dispatcher : context.getRequestDispatcher(forwardURI);
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.javawords.faces.mapping;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+
+/**
+ * The routes of all the pages of the web application, built once by listing its resources. Maps the
+ * path of every file with the lookup extension, without the extension, to the route forwarding to it.
+ * Instances are immutable.
+ */
+final class RouteTable {
+
+    private final Map<String, Route> routes;
+
+    private RouteTable(Map<String, Route> routes) {
+        this.routes = Collections.unmodifiableMap(routes);
+    }
+
+    /**
+     * Lists the pages of the passed in web application, skipping the private directories.
+     * @param cacheDispatchers get the dispatchers of the pages once, rather than on every forward.
+     */
+    static RouteTable build(ServletContext context, String lookupExtension, String facesExtension,
+            boolean cacheDispatchers) {
+        Map<String, Route> routes = new HashMap<String, Route>();
+        list(context, "/", lookupExtension, facesExtension, cacheDispatchers, routes);
+        return new RouteTable(routes);
+    }
+
+    private static void list(ServletContext context, String directory, String lookupExtension,
+            String facesExtension, boolean cacheDispatchers, Map<String, Route> routes) {
+        Set<?> paths = context.getResourcePaths(directory);
+        if (paths == null) return;
+        for (Object entry : paths) {
+            String path = (String) entry;
+            if (path.endsWith("/")) {
+                if (!"/WEB-INF/".equals(path) && !"/META-INF/".equals(path))
+                    list(context, path, lookupExtension, facesExtension, cacheDispatchers, routes);
+            } else if (path.endsWith(lookupExtension)) {
+                String page = path.substring(0, path.length() - lookupExtension.length());
+                String forwardURI = page + facesExtension;
+                RequestDispatcher dispatcher = cacheDispatchers ? context.getRequestDispatcher(forwardURI) : null;
+                routes.put(page, new Route(forwardURI, dispatcher));
+            }
+        }
+    }
+
+    /**
+     * Returns the route of the passed in path, {@code null} if there is no page for it.
+     */
+    Route get(String path) {
+        return routes.get(path);
+    }
+
+    int size() {
+        return routes.size();
+    }
+
+}
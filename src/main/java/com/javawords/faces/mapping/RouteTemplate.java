@@ -0,0 +1,127 @@
+package com.javawords.faces.mapping;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A path template such as <code>/blog/{slug}/comments</code> and the view it is forwarded to. Templates
+ * are made of segments, each one either literal or a <code>{name}</code> parameter matching any single
+ * segment. Instances are immutable.
+ */
+final class RouteTemplate {
+
+    private final String template;
+
+    private final String view;
+
+    private final String[] segments;
+
+    private final List<String> parameters;
+
+    private final Route route;
+
+    /**
+     * @param template the path template.
+     * @param view the path of the view, without extension.
+     * @param route the route forwarding to the view.
+     * @throws IllegalArgumentException if the template is malformed.
+     */
+    RouteTemplate(String template, String view, Route route) {
+        List<String> result = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        for (String segment : template.split("/")) {
+            if (segment.length() == 0) continue;
+            if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (names.contains(name)) throw new IllegalArgumentException("Duplicate parameter " + name);
+                names.add(name);
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0) {
+                throw new IllegalArgumentException("Parameters must span whole segments: " + segment);
+            }
+            result.add(segment);
+        }
+        this.template = template;
+        this.view = view;
+        this.segments = result.toArray(new String[result.size()]);
+        this.parameters = Collections.unmodifiableList(names);
+        this.route = route;
+    }
+
+    String getTemplate() {
+        return template;
+    }
+
+    String getView() {
+        return view;
+    }
+
+    /**
+     * Returns true if the passed in view id, with or without extension, is the view of this template.
+     */
+    boolean isView(String viewId) {
+        int dot = viewId.lastIndexOf('.');
+        int length = dot > 0 ? dot : viewId.length();
+        return length == view.length() && viewId.startsWith(view);
+    }
+
+    Route getRoute() {
+        return route;
+    }
+
+    /**
+     * Returns the names of the parameters, in the order they appear.
+     */
+    List<String> getParameters() {
+        return parameters;
+    }
+
+    int getSegmentCount() {
+        return segments.length;
+    }
+
+    String getSegment(int index) {
+        return segments[index];
+    }
+
+    static boolean isParameter(String segment) {
+        return segment.startsWith("{");
+    }
+
+    /**
+     * Returns the path of the template filled in with the passed in parameters, the first value of each
+     * one URL encoded, or {@code null} if any of the parameters is missing.
+     */
+    String expand(Map<String, List<String>> values) {
+        StringBuilder result = new StringBuilder();
+        for (String segment : segments) {
+            result.append('/');
+            if (isParameter(segment)) {
+                List<String> value = values == null ? null
+                        : values.get(segment.substring(1, segment.length() - 1));
+                if (value == null || value.isEmpty() || value.get(0) == null) return null;
+                result.append(encode(value.get(0)));
+            } else {
+                result.append(segment);
+            }
+        }
+        return result.length() == 0 ? "/" : result.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return template + " -> " + view;
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.javawords.faces.mapping;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches request URIs against {@link RouteTemplate}s compiled into a trie of path segments. At every
+ * segment the literal child is tried first, and the parameter child if the literal branch does not
+ * lead to a template, so that literal segments take precedence without hiding the templates that
+ * overlap them: with <code>/blog/archive</code> and <code>/blog/{slug}/comments</code>,
+ * <code>/blog/archive/comments</code> matches the latter. Every segment is scanned once per branch
+ * tried, and there are at most two branches per segment. Empty segments, such as the ones of trailing
+ * slashes, are ignored.
+ *
+ * <p>{@link MappingFilter} publishes its router as a context attribute, so that
+ * {@link MappingViewHandler} generates URLs from the same routes. Instances are immutable.</p>
+ */
+final class Router {
+
+    /**
+     * The name of the context attribute holding the router of the application.
+     */
+    static final String CONTEXT_ATTRIBUTE = Router.class.getName();
+
+    /**
+     * The name of the request attribute holding the matched template.
+     */
+    static final String TEMPLATE_ATTRIBUTE = "com.javawords.faces.mapping.routeTemplate";
+
+    /**
+     * The name of the request attribute holding the parameters of the matched template, by name.
+     */
+    static final String PARAMETERS_ATTRIBUTE = "com.javawords.faces.mapping.routeParameters";
+
+    /**
+     * The name of the request attribute holding the matched URI, without the context path.
+     */
+    static final String PATH_ATTRIBUTE = "com.javawords.faces.mapping.routePath";
+
+    private final Node root;
+
+    private final Map<String, RouteTemplate> views;
+
+    private final int maxParameters;
+
+    Router(List<RouteTemplate> templates) {
+        Builder trie = new Builder();
+        Map<String, RouteTemplate> byView = new HashMap<String, RouteTemplate>();
+        int max = 0;
+        for (RouteTemplate template : templates) {
+            trie.add(template, 0);
+            if (!byView.containsKey(template.getView())) byView.put(template.getView(), template);
+            max = Math.max(max, template.getParameters().size());
+        }
+        this.root = trie.build();
+        this.views = Collections.unmodifiableMap(byView);
+        this.maxParameters = max;
+    }
+
+    /**
+     * Matches the passed in URI.
+     * @param uri the request URI.
+     * @param from the index the path starts at, the length of the context path.
+     * @return the match, or {@code null} if no template matches.
+     */
+    Match match(String uri, int from) {
+        int[] bounds = maxParameters == 0 ? null : new int[maxParameters * 2];
+        RouteTemplate template = match(root, uri, from, bounds, 0);
+        return template == null ? null : new Match(template, uri, from, bounds);
+    }
+
+    /**
+     * Matches the rest of a URI from the passed in node, recording the bounds of the parameters
+     * captured from the passed in index on.
+     * @return the matched template, or {@code null} if no template matches.
+     */
+    private static RouteTemplate match(Node node, String uri, int start, int[] bounds, int captured) {
+        int length = uri.length();
+        while (start < length && uri.charAt(start) == '/') start++;
+        if (start == length) return node.template;
+        int end = start;
+        int hash = 0;
+        while (end < length && uri.charAt(end) != '/') hash = 31 * hash + uri.charAt(end++);
+        Node literal = node.literal(uri, start, end - start, hash);
+        if (literal != null) {
+            RouteTemplate result = match(literal, uri, end, bounds, captured);
+            if (result != null) return result;
+        }
+        if (node.parameter == null) return null;
+        bounds[captured] = start;
+        bounds[captured + 1] = end;
+        return match(node.parameter, uri, end, bounds, captured + 2);
+    }
+
+    /**
+     * Returns the first template forwarding to the passed in view, the view path without extension,
+     * or {@code null} if there is none.
+     */
+    RouteTemplate forView(String view) {
+        return views.get(view);
+    }
+
+    boolean isEmpty() {
+        return root.template == null && root.parameter == null && root.keys.length == 0;
+    }
+
+    /**
+     * A matched template and the values of its parameters.
+     */
+    static final class Match {
+
+        private final RouteTemplate template;
+
+        private final String uri;
+
+        private final int from;
+
+        private final int[] bounds;
+
+        Match(RouteTemplate template, String uri, int from, int[] bounds) {
+            this.template = template;
+            this.uri = uri;
+            this.from = from;
+            this.bounds = bounds;
+        }
+
+        RouteTemplate getTemplate() {
+            return template;
+        }
+
+        /**
+         * Returns the matched path, without the context path.
+         */
+        String getPath() {
+            return uri.substring(from);
+        }
+
+        /**
+         * Returns the decoded values of the parameters, by name in template order.
+         */
+        Map<String, String> getParameters() {
+            List<String> names = template.getParameters();
+            Map<String, String> result = new LinkedHashMap<String, String>(names.size() * 2);
+            for (int i = 0; i < names.size(); i++) {
+                result.put(names.get(i), decode(uri.substring(bounds[i * 2], bounds[i * 2 + 1])));
+            }
+            return result;
+        }
+
+        private static String decode(String value) {
+            if (value.indexOf('%') < 0) return value;
+            try {
+                // A '+' in a path is a plus sign, not an encoded space.
+                return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException uee) {
+                throw new IllegalStateException(uee);
+            } catch (IllegalArgumentException iae) {
+                return value;
+            }
+        }
+
+    }
+
+    /**
+     * A trie node, literal children are kept in an open addressing hash table probed with the hash of
+     * the segment computed while scanning it.
+     */
+    private static final class Node {
+
+        private final String[] keys;
+
+        private final Node[] children;
+
+        private final int mask;
+
+        private final Node parameter;
+
+        private final RouteTemplate template;
+
+        Node(Map<String, Node> literals, Node parameter, RouteTemplate template) {
+            int size = Integer.highestOneBit(Math.max(1, literals.size()) * 2) * 2;
+            this.keys = new String[literals.isEmpty() ? 0 : size];
+            this.children = new Node[keys.length];
+            this.mask = keys.length - 1;
+            for (Map.Entry<String, Node> e : literals.entrySet()) {
+                int i = spread(e.getKey().hashCode()) & mask;
+                while (keys[i] != null) i = (i + 1) & mask;
+                keys[i] = e.getKey();
+                children[i] = e.getValue();
+            }
+            this.parameter = parameter;
+            this.template = template;
+        }
+
+        Node literal(String uri, int start, int length, int hash) {
+            if (keys.length == 0) return null;
+            int i = spread(hash) & mask;
+            while (keys[i] != null) {
+                String key = keys[i];
+                if (key.length() == length && uri.regionMatches(start, key, 0, length)) return children[i];
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+
+    }
+
+    /**
+     * Collects the templates before they are frozen into {@link Node}s.
+     */
+    private static final class Builder {
+
+        private final Map<String, Builder> literals = new LinkedHashMap<String, Builder>();
+
+        private Builder parameter;
+
+        private RouteTemplate template;
+
+        void add(RouteTemplate route, int index) {
+            if (index == route.getSegmentCount()) {
+                if (template != null) {
+                    throw new IllegalArgumentException("Route " + route + " conflicts with " + template);
+                }
+                template = route;
+                return;
+            }
+            String segment = route.getSegment(index);
+            Builder child;
+            if (RouteTemplate.isParameter(segment)) {
+                if (parameter == null) parameter = new Builder();
+                child = parameter;
+            } else {
+                child = literals.get(segment);
+                if (child == null) {
+                    child = new Builder();
+                    literals.put(segment, child);
+                }
+            }
+            child.add(route, index + 1);
+        }
+
+        Node build() {
+            Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+            for (Map.Entry<String, Builder> e : literals.entrySet()) nodes.put(e.getKey(), e.getValue().build());
+            return new Node(nodes, parameter == null ? null : parameter.build(), template);
+        }
+
+    }
+
+    /**
+     * Parses routes written as a semicolon-separated list of <code>template=view</code> pairs, the
+     * views being paths without extension.
+     * @throws IllegalArgumentException if a route is malformed.
+     */
+    static List<String[]> parse(String param) {
+        List<String[]> result = new ArrayList<String[]>();
+        for (String entry : param.split(";")) {
+            if (entry.trim().length() == 0) continue;
+            int separator = entry.indexOf('=');
+            if (separator <= 0) throw new IllegalArgumentException("Routes must be written as template=view: " + entry);
+            result.add(new String[]{entry.substring(0, separator).trim(), entry.substring(separator + 1).trim()});
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.javawords.faces.mapping;
+
+/**
+ * Decides which request URIs {@link MappingFilter} maps to pages: URIs ending with "/{anyword}",
+ * optionally followed by slashes, where {anyword} is made of letters, digits, underscores and hyphens,
+ * and not starting with an excluded prefix. This is the test of the pattern
+ * <code>.*&#47;[\w\-]+&#47;*</code>, done in a single backwards scan of the URI without allocating.
+ */
+final class UriClassifier {
+
+    private final String contextPath;
+
+    private final String[] excludes;
+
+    /**
+     * @param contextPath the context path of the web application, stripped from mapped URIs.
+     * @param excludes URI prefixes never mapped.
+     */
+    UriClassifier(String contextPath, String[] excludes) {
+        this.contextPath = contextPath;
+        this.excludes = excludes.clone();
+    }
+
+    /**
+     * Returns the path of the page the passed in URI maps to, the URI without the context path and the
+     * trailing slashes, or {@code null} if the URI is not mapped. The URI itself is returned when there
+     * is nothing to strip.
+     */
+    String classify(String uri) {
+        int end = uri.length();
+        while (end > 0 && uri.charAt(end - 1) == '/') end--;
+        int start = end;
+        while (start > 0 && isWordChar(uri.charAt(start - 1))) start--;
+        if (start == end || start == 0 || uri.charAt(start - 1) != '/') return null;
+        if (isExcluded(uri)) return null;
+        int from = contextPath.length() <= end ? pathStart(uri) : 0;
+        return from == 0 && end == uri.length() ? uri : uri.substring(from, end);
+    }
+
+    /**
+     * Returns true if the passed in URI starts with an excluded prefix.
+     */
+    boolean isExcluded(String uri) {
+        for (String exclude : excludes) {
+            if (uri.startsWith(exclude)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index the path of the passed in URI starts at, after the context path.
+     */
+    int pathStart(String uri) {
+        return contextPath.length() > 0 && uri.startsWith(contextPath) ? contextPath.length() : 0;
+    }
+
+    /**
+     * Returns true for the characters of <code>[\w\-]</code>.
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+}
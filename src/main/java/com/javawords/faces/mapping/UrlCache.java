@@ -0,0 +1,88 @@
+package com.javawords.faces.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The URLs generated by {@link MappingViewHandler}, for one context path. Action URLs are kept by view
+ * id, bookmarkable URLs by view id and parameters, so that a cache hit is a lookup with the arguments
+ * of the call as they are, allocating nothing.
+ *
+ * <p>Both caches are bounded: no more views are added once the view limit is reached, and the URLs of
+ * a view are cleared once they reach the limit of parameter combinations, so that links with ever
+ * changing parameters cannot grow the cache.</p>
+ */
+final class UrlCache {
+
+    private static final Map<String, List<String>> NO_PARAMETERS = Collections.emptyMap();
+
+    private final String contextPath;
+
+    private final int maxViews;
+
+    private final int maxVariants;
+
+    private final ConcurrentMap<String, String> actions = new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, ConcurrentMap<Map<String, List<String>>, String>> bookmarks =
+            new ConcurrentHashMap<String, ConcurrentMap<Map<String, List<String>>, String>>();
+
+    /**
+     * @param contextPath the context path the URLs are generated for.
+     * @param maxViews the maximum number of views.
+     * @param maxVariants the maximum number of parameter combinations per view.
+     */
+    UrlCache(String contextPath, int maxViews, int maxVariants) {
+        this.contextPath = contextPath;
+        this.maxViews = maxViews;
+        this.maxVariants = maxVariants;
+    }
+
+    String getContextPath() {
+        return contextPath;
+    }
+
+    String getAction(String viewId) {
+        return actions.get(viewId);
+    }
+
+    void putAction(String viewId, String url) {
+        if (actions.size() < maxViews) actions.put(viewId, url);
+    }
+
+    String getBookmarkable(String viewId, Map<String, List<String>> parameters) {
+        Map<Map<String, List<String>>, String> urls = bookmarks.get(viewId);
+        return urls == null ? null : urls.get(parameters == null ? NO_PARAMETERS : parameters);
+    }
+
+    void putBookmarkable(String viewId, Map<String, List<String>> parameters, String url) {
+        ConcurrentMap<Map<String, List<String>>, String> urls = bookmarks.get(viewId);
+        if (urls == null) {
+            if (bookmarks.size() >= maxViews) return;
+            urls = new ConcurrentHashMap<Map<String, List<String>>, String>();
+            ConcurrentMap<Map<String, List<String>>, String> existing = bookmarks.putIfAbsent(viewId, urls);
+            if (existing != null) urls = existing;
+        }
+        if (urls.size() >= maxVariants) urls.clear();
+        urls.put(copy(parameters), url);
+    }
+
+    /**
+     * Copies the parameters of a call, the caller being free to change them afterwards.
+     */
+    private static Map<String, List<String>> copy(Map<String, List<String>> parameters) {
+        if (parameters == null || parameters.isEmpty()) return NO_PARAMETERS;
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>(parameters.size() * 2);
+        for (Map.Entry<String, List<String>> e : parameters.entrySet()) {
+            result.put(e.getKey(), e.getValue() == null ? null
+                    : Collections.unmodifiableList(new ArrayList<String>(e.getValue())));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+}
@@ -0,0 +1,538 @@
+package com.javawords.faces.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact binary codec for session attributes.
+ *
+ * <p>Strings, primitive wrappers, dates and the common collections holding only such values are
+ * written with a one byte tag followed by their content. Any other value is written with Java
+ * serialization, using an object stream that replaces the descriptors of a fixed dictionary of common
+ * JDK classes with an index. Those are read back with the descriptor of the loaded class, which the
+ * specified serialized form of JDK classes keeps compatible across releases. The descriptors of the
+ * rest, library classes included, are written in full, so that values read back follow the rules of
+ * Java serialization: a class with a different {@code serialVersionUID} fails with an
+ * {@code InvalidClassException}, while compatible changes such as added fields are read as usual.</p>
+ *
+ * <p>Encoded values larger than the compression threshold are compressed with Deflate, as long as that
+ * makes them smaller.</p>
+ */
+public class SessionCodec {
+
+    private static final int FORMAT = 2;
+    private static final int FLAG_DEFLATE = 0x80;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_FLOAT = 7;
+    private static final int TAG_SHORT = 8;
+    private static final int TAG_BYTE = 9;
+    private static final int TAG_CHARACTER = 10;
+    private static final int TAG_DATE = 11;
+    private static final int TAG_ARRAY_LIST = 12;
+    private static final int TAG_HASH_SET = 13;
+    private static final int TAG_HASH_MAP = 14;
+    private static final int TAG_LINKED_HASH_MAP = 15;
+    private static final int TAG_OBJECT = 16;
+
+    /**
+     * Nesting depth up to which collections are written with the fast path.
+     */
+    private static final int MAX_DEPTH = 4;
+
+    /**
+     * Classes whose descriptors are written as an index. Entries may only be appended, since the index of
+     * each class is part of the stored format. Only the first {@link #WRITTEN_ENTRIES} are written, the
+     * rest are retired entries of library classes, see {@link CompactObjectInputStream}.
+     */
+    private static final String[] DICTIONARY = {
+        "java.lang.Number", "java.lang.String", "java.lang.Integer", "java.lang.Long", "java.lang.Boolean",
+        "java.lang.Double", "java.lang.Float", "java.lang.Short", "java.lang.Byte", "java.lang.Character",
+        "java.lang.Enum", "java.math.BigDecimal", "java.math.BigInteger", "java.util.Date",
+        "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.LinkedHashMap",
+        "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+        "java.util.Locale", "java.util.Collections$EmptyList", "java.util.Collections$EmptyMap",
+        "java.util.Collections$EmptySet", "java.util.Collections$UnmodifiableList",
+        "java.util.Collections$UnmodifiableRandomAccessList", "java.util.Collections$UnmodifiableCollection",
+        "java.util.Collections$UnmodifiableMap", "java.util.Collections$UnmodifiableSet",
+        "java.util.Arrays$ArrayList", "[Ljava.lang.Object;", "[Ljava.lang.String;", "[I", "[J", "[B", "[C",
+        "[Z", "[D",
+        // Retired, the layout of library classes changes with the library version.
+        "javax.faces.model.DataModel", "javax.faces.model.ListDataModel",
+        "javax.faces.model.ArrayDataModel", "javax.faces.component.UIComponentBase",
+        "javax.faces.application.FacesMessage", "javax.faces.application.FacesMessage$Severity"
+    };
+
+    /**
+     * Number of leading {@link #DICTIONARY} entries written as an index, all of them JDK classes.
+     */
+    private static final int WRITTEN_ENTRIES = 40;
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < WRITTEN_ENTRIES; i++) DICTIONARY_INDEX.put(DICTIONARY[i], i + 1);
+    }
+
+    private final int compressionThreshold;
+
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    /**
+     * @param compressionThreshold encoded size in bytes above which values are compressed, negative to
+     * never compress.
+     */
+    public SessionCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Encodes the passed in value.
+     * @param value the value to encode, may be {@code null}.
+     * @return the encoded form of the value.
+     */
+    public byte[] encode(Object value) throws IOException {
+        return compress(serialize(value));
+    }
+
+    /**
+     * Encodes the passed in value without compressing it, so that it can be compared against a stored
+     * value with {@link #isEncodingOf(byte[], byte[])} before paying for the compression.
+     * @param value the value to encode, may be {@code null}.
+     * @return the uncompressed encoded form of the value.
+     */
+    public byte[] serialize(Object value) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(FORMAT);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeValue(out, value);
+        out.flush();
+        encodeNanos.addAndGet(System.nanoTime() - start);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Completes the encoding of a value returned by {@link #serialize(java.lang.Object)}, compressing it
+     * if it is larger than the compression threshold and compression makes it smaller.
+     */
+    public byte[] compress(byte[] serialized) {
+        long start = System.nanoTime();
+        byte[] result = serialized;
+        int raw = serialized.length;
+        if (compressionThreshold >= 0 && raw > compressionThreshold) {
+            byte[] deflated = deflate(serialized);
+            if (deflated.length < raw) {
+                result = deflated;
+                compressed.incrementAndGet();
+            }
+        }
+        encoded.incrementAndGet();
+        rawBytes.addAndGet(raw);
+        encodedBytes.addAndGet(result.length);
+        encodeNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Returns true if the passed in encoded value holds the passed in uncompressed encoding, inflating
+     * it if it is compressed.
+     */
+    public boolean isEncodingOf(byte[] encoded, byte[] serialized) throws IOException {
+        if (encoded.length == 0 || (encoded[0] & FLAG_DEFLATE) == 0) return Arrays.equals(encoded, serialized);
+        return Arrays.equals(inflate(encoded), serialized);
+    }
+
+    /**
+     * Returns true if the passed in encoded value is {@code null}, a string or a primitive wrapper, a
+     * value that cannot be modified once decoded. Compressed values are not inflated to be inspected, and
+     * are reported as not immutable.
+     */
+    public boolean isImmutable(byte[] encoded) {
+        if (encoded.length < 2 || (encoded[0] & 0xff) != FORMAT) return false;
+        int tag = encoded[1] & 0xff;
+        return tag <= TAG_CHARACTER;
+    }
+
+    /**
+     * Decodes a value written by {@link #encode(java.lang.Object)}.
+     */
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        Object result;
+        int header = data[0] & 0xff;
+        if ((header & ~FLAG_DEFLATE) == FORMAT) {
+            byte[] content = (header & FLAG_DEFLATE) != 0 ? inflate(data) : data;
+            ByteArrayInputStream bytes = new ByteArrayInputStream(content, 1, content.length - 1);
+            result = readValue(new DataInputStream(bytes));
+        } else {
+            throw new StreamCorruptedException("Unknown session codec format " + header);
+        }
+        decoded.incrementAndGet();
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (!isSimple(value, 0)) {
+            out.writeByte(TAG_OBJECT);
+            out.flush();
+            ObjectOutputStream oos = new CompactObjectOutputStream(out);
+            oos.writeObject(value);
+            oos.flush();
+            return;
+        }
+        writeSimple(out, value);
+    }
+
+    private void writeSimple(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            byte[] utf = ((String) value).getBytes("UTF-8");
+            writeVarInt(out, utf.length);
+            out.write(utf);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INTEGER);
+            writeVarLong(out, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(TAG_CHARACTER);
+            out.writeChar((Character) value);
+        } else if (value instanceof Date) {
+            out.writeByte(TAG_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Collection) {
+            out.writeByte(value instanceof ArrayList ? TAG_ARRAY_LIST : TAG_HASH_SET);
+            Collection<?> c = (Collection<?>) value;
+            writeVarInt(out, c.size());
+            for (Object o : c) writeSimple(out, o);
+        } else {
+            out.writeByte(value instanceof LinkedHashMap ? TAG_LINKED_HASH_MAP : TAG_HASH_MAP);
+            Map<?, ?> m = (Map<?, ?>) value;
+            writeVarInt(out, m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                writeSimple(out, e.getKey());
+                writeSimple(out, e.getValue());
+            }
+        }
+    }
+
+    private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                byte[] utf = new byte[readVarInt(in)];
+                in.readFully(utf);
+                return new String(utf, "UTF-8");
+            case TAG_INTEGER:
+                return (int) unZigZag(readVarLong(in));
+            case TAG_LONG:
+                return unZigZag(readVarLong(in));
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_CHARACTER:
+                return in.readChar();
+            case TAG_DATE:
+                return new Date(in.readLong());
+            case TAG_ARRAY_LIST: {
+                int size = readVarInt(in);
+                ArrayList<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) list.add(readValue(in));
+                return list;
+            }
+            case TAG_HASH_SET: {
+                int size = readVarInt(in);
+                HashSet<Object> set = new HashSet<Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) set.add(readValue(in));
+                return set;
+            }
+            case TAG_HASH_MAP:
+            case TAG_LINKED_HASH_MAP: {
+                int size = readVarInt(in);
+                Map<Object, Object> map = tag == TAG_HASH_MAP
+                        ? new HashMap<Object, Object>(size * 4 / 3 + 1)
+                        : new LinkedHashMap<Object, Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) map.put(readValue(in), readValue(in));
+                return map;
+            }
+            case TAG_OBJECT:
+                return new CompactObjectInputStream(in).readObject();
+            default:
+                throw new StreamCorruptedException("Unknown session codec tag " + tag);
+        }
+    }
+
+    /**
+     * Returns true if the passed in value can be written with the fast path. Collections qualify only
+     * for their exact common classes, so that the class read back is the class written.
+     */
+    private static boolean isSimple(Object value, int depth) {
+        if (value == null || value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Boolean || value instanceof Double || value instanceof Float
+                || value instanceof Short || value instanceof Byte || value instanceof Character) return true;
+        if (value.getClass() == Date.class) return true;
+        if (depth >= MAX_DEPTH) return false;
+        Class<?> c = value.getClass();
+        if (c == ArrayList.class || c == HashSet.class) {
+            for (Object o : (Collection<?>) value) if (!isSimple(o, depth + 1)) return false;
+            return true;
+        }
+        if (c == HashMap.class || c == LinkedHashMap.class) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!isSimple(e.getKey(), depth + 1) || !isSimple(e.getValue(), depth + 1)) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 1, data.length - 1);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            out.write(FORMAT | FLAG_DEFLATE);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 1, data.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            out.write(FORMAT);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new StreamCorruptedException("Truncated compressed session value.");
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException dfe) {
+            throw new StreamCorruptedException("Corrupted compressed session value: " + dfe.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new StreamCorruptedException("Malformed variable length number.");
+    }
+
+    /**
+     * Returns the number of values encoded.
+     */
+    public long getEncoded() {
+        return encoded.get();
+    }
+
+    /**
+     * Returns the number of encoded values that were compressed.
+     */
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * Returns the total size of the encoded values before compression.
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * Returns the total size of the encoded values after compression.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * Returns the total time spent encoding, in nanoseconds.
+     */
+    public long getEncodeNanos() {
+        return encodeNanos.get();
+    }
+
+    /**
+     * Returns the number of values decoded.
+     */
+    public long getDecoded() {
+        return decoded.get();
+    }
+
+    /**
+     * Returns the total time spent decoding, in nanoseconds.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionCodec{encoded=" + encoded + ", compressed=" + compressed + ", rawBytes=" + rawBytes
+                + ", encodedBytes=" + encodedBytes + ", encodeNanos=" + encodeNanos + ", decoded=" + decoded
+                + ", decodeNanos=" + decodeNanos + '}';
+    }
+
+    private static class CompactObjectOutputStream extends ObjectOutputStream {
+
+        CompactObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            Integer index = DICTIONARY_INDEX.get(desc.getName());
+            if (index != null) {
+                writeByte(index);
+            } else {
+                writeByte(0);
+                super.writeClassDescriptor(desc);
+            }
+        }
+
+    }
+
+    private static class CompactObjectInputStream extends ObjectInputStream {
+
+        CompactObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int index = readUnsignedByte();
+            if (index > DICTIONARY.length) throw new StreamCorruptedException("Unknown class index " + index);
+            // The stream descriptor is checked against the local class by its serialVersionUID.
+            if (index == 0) return super.readClassDescriptor();
+            // Values written with a retired entry carry nothing to check the loaded class against.
+            if (index > WRITTEN_ENTRIES) throw new InvalidClassException(DICTIONARY[index - 1],
+                    "written without a class descriptor by an earlier version");
+            return ObjectStreamClass.lookupAny(forName(DICTIONARY[index - 1]));
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            return forName(desc.getName());
+        }
+
+        private static Class<?> forName(String name) throws ClassNotFoundException {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(name, false, loader);
+                } catch (ClassNotFoundException cnfe) {
+                    // Fall back to the loader of this class.
+                }
+            }
+            return Class.forName(name, false, SessionCodec.class.getClassLoader());
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.javawords.faces.gae;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the deferred Datastore writes of {@link DatastoreSessionStore} against the local services.
+ */
+public class DatastoreSessionStoreTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalMemcacheServiceTestConfig(), new LocalDatastoreServiceTestConfig());
+
+    private HoldingDelegate delegate;
+
+    private DatastoreSessionStore store;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        helper.setUp();
+        delegate = new HoldingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(delegate);
+        // Flushed by the tests alone.
+        store = new DatastoreSessionStore(new MemcacheSessionStore(false), 100, TimeUnit.HOURS.toMillis(1));
+    }
+
+    @After
+    public void tearDown() {
+        delegate.release();
+        store.close();
+        helper.tearDown();
+    }
+
+    /**
+     * A write failing after a newer state of its session was queued must not overwrite that state.
+     */
+    @Test
+    public void failedWriteDoesNotOverwriteNewerState() throws Exception {
+        SessionRecord older = save("s", "older");
+        delegate.holdNextPut();
+        store.flush();
+        SessionRecord newer = save("s", "newer");
+        store.flush();
+        delegate.release();
+        store.flush();
+        store.flush();
+
+        assertEquals(newer.getVersion(), storedVersion("s"));
+        assertFalse(older.getVersion() == storedVersion("s"));
+    }
+
+    @Test
+    public void failedWriteIsQueuedAgain() throws Exception {
+        SessionRecord record = save("s", "value");
+        delegate.holdNextPut();
+        store.flush();
+        delegate.release();
+        store.flush();
+
+        assertEquals(record.getVersion(), storedVersion("s"));
+    }
+
+    @Test
+    public void closeWritesTheQueuedSessions() throws Exception {
+        SessionRecord record = save("s", "value");
+        store.close();
+
+        assertEquals(record.getVersion(), storedVersion("s"));
+    }
+
+    private SessionRecord save(String sessionId, String value) {
+        long version = SessionRecord.nextVersion();
+        SessionRecord record = new SessionRecord(Collections.singletonMap("a", value.getBytes()),
+                Collections.singletonMap("a", version), version);
+        store.save(sessionId, record, Collections.singleton("a"), Collections.<String>emptySet());
+        return record;
+    }
+
+    private static long storedVersion(String sessionId) throws Exception {
+        return (Long) DatastoreServiceFactory.getDatastoreService()
+                .get(KeyFactory.createKey(DatastoreSessionStore.KIND, sessionId)).getProperty("version");
+    }
+
+    /**
+     * Completes Datastore puts before returning them, except the put it is told to hold, which fails
+     * once released.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final class HoldingDelegate implements ApiProxy.Delegate {
+
+        private final ApiProxy.Delegate delegate;
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private volatile boolean holdNext;
+
+        HoldingDelegate(ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        void holdNextPut() {
+            holdNext = true;
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+                byte[] request) {
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            if (!"datastore_v3".equals(packageName) || !"Put".equals(methodName))
+                return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+            if (holdNext) {
+                holdNext = false;
+                return new HeldPut();
+            }
+            Future<byte[]> result = delegate.makeAsyncCall(environment, packageName, methodName, request,
+                    apiConfig);
+            try {
+                result.get();
+            } catch (Exception e) {
+                // Surfaced to the store by the returned future.
+            }
+            return result;
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+
+        private final class HeldPut implements Future<byte[]> {
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public boolean isDone() {
+                return released.getCount() == 0;
+            }
+
+            @Override
+            public byte[] get() throws InterruptedException, ExecutionException {
+                released.await();
+                throw new ExecutionException(new ApiProxy.ApplicationException(4, "Held put failed."));
+            }
+
+            @Override
+            public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+                return get();
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.javawords.faces.gae;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the conditional writes of {@link MemcacheSessionStore} against the local memcache service.
+ */
+public class MemcacheSessionStoreTest {
+
+    private static final int ROUNDS = 200;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+    private MemcacheSessionStore store;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        store = new MemcacheSessionStore(false);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void conditionalWriteOfStaleVersionConflicts() {
+        SessionRecord base = write("s", SessionRecord.NO_VERSION, "a", "0");
+        assertNull(store.saveIfCurrent("s", base.getVersion(), record("a", "1"), names("a"), names()));
+        SessionRecord stale = record("a", "2");
+        SessionRecord current = store.saveIfCurrent("s", base.getVersion(), stale, names("a"), names());
+        assertNotNull(current);
+
+        SessionRecord loaded = store.load("s", SessionRecord.NO_VERSION);
+        assertEquals(current.getVersion(), loaded.getVersion());
+        assertEquals("1", new String(loaded.getData().get("a")));
+    }
+
+    @Test
+    public void removedAttributesLeaveTheSession() {
+        SessionRecord base = write("s", SessionRecord.NO_VERSION, "a", "0");
+        SessionRecord record = new SessionRecord(Collections.<String, byte[]>emptyMap(),
+                Collections.<String, Long>emptyMap(), SessionRecord.nextVersion());
+        assertNull(store.saveIfCurrent("s", base.getVersion(), record, names(), names("a")));
+
+        SessionRecord loaded = store.load("s", SessionRecord.NO_VERSION);
+        assertEquals(record.getVersion(), loaded.getVersion());
+        assertTrue(loaded.getData().isEmpty());
+    }
+
+    @Test
+    public void supersededValuesAreDeleted() {
+        SessionRecord first = write("s", SessionRecord.NO_VERSION, "a", "0");
+        SessionRecord second = record("a", "1");
+        store.save("s", second, names("a"), names());
+        assertNull(storedValue("s", "a", first.getVersion()));
+
+        SessionRecord third = record("a", "2");
+        assertNull(store.saveIfCurrent("s", second.getVersion(), third, names("a"), names()));
+        assertNull(storedValue("s", "a", second.getVersion()));
+        assertEquals("2", new String((byte[]) storedValue("s", "a", third.getVersion())));
+    }
+
+    /**
+     * Two writers of the same version race to replace the session. Exactly one of them wins, and the
+     * session then holds the attributes of the winner alone, at the version of the winner.
+     */
+    @Test
+    public void racingWritersPublishOnlyTheWinner() throws Exception {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final String sessionId = "session" + round;
+                final long base = write(sessionId, SessionRecord.NO_VERSION, "shared", "initial").getVersion();
+                final CyclicBarrier barrier = new CyclicBarrier(2);
+                final SessionRecord[] records = new SessionRecord[2];
+                List<Future<SessionRecord>> results = new ArrayList<Future<SessionRecord>>(2);
+                for (int i = 0; i < 2; i++) {
+                    Map<String, byte[]> data = new HashMap<String, byte[]>();
+                    data.put("shared", ("writer" + i).getBytes());
+                    data.put("own" + i, ("writer" + i).getBytes());
+                    final SessionRecord record = withVersion(data, SessionRecord.nextVersion());
+                    records[i] = record;
+                    results.add(executor.submit(new Callable<SessionRecord>() {
+
+                        @Override
+                        public SessionRecord call() throws Exception {
+                            ApiProxy.setEnvironmentForCurrentThread(environment);
+                            barrier.await();
+                            return store.saveIfCurrent(sessionId, base, record, record.getData().keySet(),
+                                    Collections.<String>emptySet());
+                        }
+
+                    }));
+                }
+                SessionRecord first = results.get(0).get();
+                SessionRecord second = results.get(1).get();
+                assertTrue("Exactly one writer must win", (first == null) != (second == null));
+                int winner = first == null ? 0 : 1;
+                SessionRecord conflict = first == null ? second : first;
+
+                SessionRecord loaded = store.load(sessionId, SessionRecord.NO_VERSION);
+                assertEquals(records[winner].getVersion(), loaded.getVersion());
+                assertEquals(records[winner].getVersion(), conflict.getVersion());
+                assertEquals(new HashSet<String>(Arrays.asList("shared", "own" + winner)),
+                        loaded.getData().keySet());
+                assertEquals("writer" + winner, new String(loaded.getData().get("shared")));
+                assertEquals("writer" + winner, new String(loaded.getData().get("own" + winner)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Object storedValue(String sessionId, String name, long version) {
+        return MemcacheServiceFactory.getMemcacheService(MemcacheSessionStore.NAMESPACE)
+                .get(SessionIndex.attributeKey(sessionId, name, version));
+    }
+
+    private SessionRecord write(String sessionId, long expectedVersion, String name, String value) {
+        SessionRecord record = record(name, value);
+        assertNull(store.saveIfCurrent(sessionId, expectedVersion, record, names(name), names()));
+        return record;
+    }
+
+    private static SessionRecord record(String name, String value) {
+        return withVersion(Collections.singletonMap(name, value.getBytes()), SessionRecord.nextVersion());
+    }
+
+    private static SessionRecord withVersion(Map<String, byte[]> data, long version) {
+        Map<String, Long> versions = new HashMap<String, Long>();
+        for (String name : data.keySet()) versions.put(name, version);
+        return new SessionRecord(data, versions, version);
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+}
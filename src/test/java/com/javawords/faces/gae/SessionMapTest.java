@@ -0,0 +1,70 @@
+package com.javawords.faces.gae;
+
+import com.javawords.faces.serialization.SessionCodec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the session maps of concurrent requests restored from the same {@link SessionSnapshot}.
+ */
+public class SessionMapTest {
+
+    private SessionCodec codec;
+
+    private SessionSnapshot snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        codec = new SessionCodec(Integer.MAX_VALUE);
+        List<String> list = new ArrayList<String>();
+        list.add("initial");
+        Map<String, byte[]> data = new HashMap<String, byte[]>();
+        data.put("list", codec.encode(list));
+        data.put("name", codec.encode("value"));
+        Map<String, Long> versions = new HashMap<String, Long>();
+        versions.put("list", 1L);
+        versions.put("name", 1L);
+        snapshot = SessionSnapshot.restore(new SessionRecord(data, versions, 1L), null, codec);
+    }
+
+    @Test
+    public void requestsShareImmutableValuesOnly() {
+        SessionMap first = new SessionMap(snapshot, codec);
+        SessionMap second = new SessionMap(snapshot, codec);
+
+        assertSame(first.get("name"), second.get("name"));
+        assertNotSame(first.get("list"), second.get("list"));
+    }
+
+    @Test
+    public void inPlaceChangesStayWithTheirRequest() {
+        SessionMap first = new SessionMap(snapshot, codec);
+        SessionMap second = new SessionMap(snapshot, codec);
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>) first.get("list");
+        list.add("changed");
+
+        assertEquals(1, ((List<?>) second.get("list")).size());
+        assertTrue(second.getDelta(codec).isEmpty());
+        assertEquals(1, first.getDelta(codec).getUpdated().size());
+        assertEquals(1, ((List<?>) new SessionMap(first.toSnapshot(), codec).get("list")).size());
+    }
+
+    @Test
+    public void unreadValuesAreNotDeserialized() throws Exception {
+        SessionMap map = new SessionMap(snapshot, codec);
+        long decoded = codec.getDecoded();
+        map.get("name");
+        assertTrue(map.getDelta(codec).isEmpty());
+        assertEquals(decoded, codec.getDecoded());
+
+        assertEquals("[initial]", map.put("list", "replaced").toString());
+        assertEquals(decoded + 1, codec.getDecoded());
+    }
+
+}